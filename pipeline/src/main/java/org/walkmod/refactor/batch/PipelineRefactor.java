@@ -0,0 +1,330 @@
+/* 
+  Copyright (C) 2013 Raquel Pau and Albert Coroleu.
+ 
+ Walkmod is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+ 
+ Walkmod is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+ 
+ You should have received a copy of the GNU Lesser General Public License
+ along with Walkmod.  If not, see <http://www.gnu.org/licenses/>.*/
+package org.walkmod.refactor.batch;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+import org.apache.log4j.Logger;
+import org.walkmod.javalang.ASTManager;
+import org.walkmod.javalang.ast.CompilationUnit;
+import org.walkmod.refactor.visitors.ClassOrInterfaceRefactor;
+import org.walkmod.refactor.visitors.MethodRefactor;
+import org.walkmod.refactor.visitors.SourceEdits;
+import org.walkmod.walkers.VisitorContext;
+
+/**
+ * Execution mode of {@link BatchRefactor} that splits the processing of each
+ * file into stages (read, parse, analyze, refactor, print and write) joined
+ * by bounded queues. The read and write stages run on virtual threads, so
+ * the disk accesses overlap with the visitors, which run on as many platform
+ * threads as configured. A full queue blocks the previous stage, which caps
+ * the number of compilation units in memory. The analyze stage has a single
+ * thread, unless the concurrent analysis is enabled, because the analysis is
+ * not thread-safe.
+ * <p>
+ * Notice that the semantic analysis of javalang-compiler 2.x, which the
+ * method rules require, reads the runtime classes from the boot class path of
+ * a Java 8 runtime. On newer runtimes, an index of the runtime image is
+ * installed as boot class path before the files are processed.
+ * </p>
+ */
+public class PipelineRefactor extends BatchRefactor {
+
+   private static final Logger LOG = Logger.getLogger(PipelineRefactor.class);
+
+   private static final Task END = new Task(null);
+
+   private int queueCapacity = 64;
+
+   private int ioThreads = 32;
+
+   @Override
+   protected List<File> setUp() throws IOException {
+      // the method rules need the analysis, which reads the runtime classes
+      RuntimeClassIndex.install();
+      return super.setUp();
+   }
+
+   @Override
+   protected void process(List<File> files, BatchReport report) throws InterruptedException {
+      ClassOrInterfaceRefactor classRefactor = createClassRefactor();
+      int threads = getThreads();
+      RefactoringCache cache = getCache();
+
+      List<Stage> stages = new ArrayList<>();
+      stages.add(new Stage("read", Thread.ofVirtual(), ioThreads, task -> {
+         task.source = read(task.file);
+         if (cache != null) {
+            task.key = cache.key(task.source);
+            RefactoringCache.Outcome outcome = cache.get(task.key);
+            if (outcome != null) {
+               if (outcome.isRewritten()) {
+                  output(task.file, task.source, outcome.getOutput(), null);
+               }
+               report.addCachedFile(outcome.isRewritten());
+               return false;
+            }
+         }
+         return true;
+      }));
+      stages.add(new Stage("parse", Thread.ofPlatform(), threads, task -> {
+         task.cu = ASTManager.parse(task.source);
+         task.methods = requiresMethodRefactor(task.source);
+         task.classes = classRefactor.isApplicable(task.cu, task.source);
+         if (!isTrackingEdits()) {
+            task.source = null;
+         }
+         if (!task.methods && !task.classes) {
+            if (task.key != null) {
+               cache.put(task.key, null);
+            }
+            report.addFile(false);
+            return false;
+         }
+         return true;
+      }));
+      stages.add(new Stage("analyze", Thread.ofPlatform(), isConcurrentAnalysis() ? threads : 1, task -> {
+         if (task.methods) {
+            analyze(task.cu);
+         }
+         return true;
+      }));
+      stages.add(new Stage("refactor", Thread.ofPlatform(), threads, task -> {
+         VisitorContext ctx = new VisitorContext();
+         task.edits = trackEdits(ctx);
+         if (task.methods) {
+            task.cu.accept(getMethodRefactor(), ctx);
+         }
+         if (task.classes) {
+            task.cu.accept(classRefactor, ctx);
+         }
+         if (!MethodRefactor.isModified(ctx)) {
+            // no rule has changed it, so it is neither printed nor written
+            if (task.key != null) {
+               cache.put(task.key, null);
+            }
+            report.addFile(false);
+            return false;
+         }
+         return true;
+      }));
+      stages.add(new Stage("print", Thread.ofPlatform(), threads, task -> {
+         task.output = print(task.cu, task.source, task.edits);
+         task.cu = null;
+         return true;
+      }));
+      stages.add(new Stage("write", Thread.ofVirtual(), ioThreads, task -> {
+         output(task.file, task.source, task.output, task.edits);
+         if (task.key != null) {
+            cache.put(task.key, task.output);
+         }
+         report.addFile(true);
+         return false;
+      }));
+
+      for (int i = 0; i < stages.size() - 1; i++) {
+         stages.get(i).next = stages.get(i + 1);
+      }
+      Pipeline pipeline = new Pipeline(stages, Thread.currentThread());
+      for (Stage stage : stages) {
+         stage.start(pipeline, report);
+      }
+      try {
+         BlockingQueue<Task> first = stages.get(0).input;
+         for (File file : files) {
+            first.put(new Task(file));
+         }
+         // each stage ends once the previous one has forwarded all its tasks
+         for (Stage stage : stages) {
+            stage.finish();
+         }
+      } catch (InterruptedException e) {
+         pipeline.interrupt();
+         if (pipeline.error != null) {
+            Thread.interrupted();
+            throw pipeline.error;
+         }
+         throw e;
+      }
+   }
+
+   public static void main(String[] args) throws Exception {
+      execute(new PipelineRefactor(), args);
+   }
+
+   /**
+    * Sets the capacity of the queue in front of each stage. Lower values
+    * reduce the number of compilation units in memory.
+    */
+   public void setQueueCapacity(int queueCapacity) {
+      if (queueCapacity < 1) {
+         throw new IllegalArgumentException("The queue capacity must be positive");
+      }
+      this.queueCapacity = queueCapacity;
+   }
+
+   /**
+    * Sets the number of virtual threads of the read and write stages.
+    */
+   public void setIoThreads(int ioThreads) {
+      if (ioThreads < 1) {
+         throw new IllegalArgumentException("The number of I/O threads must be positive");
+      }
+      this.ioThreads = ioThreads;
+   }
+
+   /**
+    * State of a file while it goes through the stages. Each task is only
+    * handled by one thread at a time, and the queues publish its fields to
+    * the next stage.
+    */
+   private static final class Task {
+
+      private final File file;
+
+      private String source;
+
+      private String key;
+
+      private CompilationUnit cu;
+
+      private SourceEdits edits;
+
+      private boolean methods;
+
+      private boolean classes;
+
+      private String output;
+
+      private Task(File file) {
+         this.file = file;
+      }
+   }
+
+   /**
+    * Threads of all the stages. An error that is not related to a single file
+    * (e.g. an OutOfMemoryError) stops the whole pipeline, otherwise the other
+    * stages would wait forever for the dead threads.
+    */
+   private static final class Pipeline {
+
+      private final List<Stage> stages;
+
+      private final Thread coordinator;
+
+      private volatile Error error;
+
+      private Pipeline(List<Stage> stages, Thread coordinator) {
+         this.stages = stages;
+         this.coordinator = coordinator;
+      }
+
+      private void abort(Error e) {
+         error = e;
+         coordinator.interrupt();
+      }
+
+      private void interrupt() {
+         for (Stage stage : stages) {
+            for (Thread thread : stage.threads) {
+               thread.interrupt();
+            }
+         }
+      }
+   }
+
+   private interface Step {
+
+      /**
+       * Processes a task.
+       * 
+       * @return if the task has to be forwarded to the next stage.
+       */
+      boolean apply(Task task) throws Exception;
+   }
+
+   private final class Stage {
+
+      private final String name;
+
+      private final Thread.Builder builder;
+
+      private final int workers;
+
+      private final Step step;
+
+      private final BlockingQueue<Task> input = new ArrayBlockingQueue<>(queueCapacity);
+
+      private final List<Thread> threads = new ArrayList<>();
+
+      private Stage next;
+
+      private Stage(String name, Thread.Builder builder, int workers, Step step) {
+         this.name = name;
+         this.builder = builder;
+         this.workers = workers;
+         this.step = step;
+      }
+
+      private void start(Pipeline pipeline, BatchReport report) {
+         for (int i = 0; i < workers; i++) {
+            threads.add(builder.name("refactor-" + name + "-" + i).start(() -> work(pipeline, report)));
+         }
+      }
+
+      private void work(Pipeline pipeline, BatchReport report) {
+         try {
+            Task task = input.take();
+            while (task != END) {
+               boolean forward = false;
+               try {
+                  forward = step.apply(task);
+               } catch (Exception | LinkageError e) {
+                  LOG.error("Error processing [" + task.file + "] in the " + name + " stage", e);
+                  report.addFailure(task.file, String.valueOf(e.getMessage()));
+               }
+               if (forward && next != null) {
+                  next.input.put(task);
+               }
+               task = input.take();
+            }
+         } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+         } catch (Error e) {
+            LOG.error("The " + name + " stage has failed", e);
+            pipeline.abort(e);
+         }
+      }
+
+      /**
+       * Waits until all the tasks of this stage have been processed. It must
+       * be called once no more tasks are put into its queue.
+       */
+      private void finish() throws InterruptedException {
+         for (int i = 0; i < workers; i++) {
+            input.put(END);
+         }
+         for (Thread thread : threads) {
+            thread.join();
+         }
+      }
+   }
+}
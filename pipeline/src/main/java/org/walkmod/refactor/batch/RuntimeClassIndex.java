@@ -0,0 +1,80 @@
+/* 
+  Copyright (C) 2013 Raquel Pau and Albert Coroleu.
+ 
+ Walkmod is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+ 
+ Walkmod is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+ 
+ You should have received a copy of the GNU Lesser General Public License
+ along with Walkmod.  If not, see <http://www.gnu.org/licenses/>.*/
+package org.walkmod.refactor.batch;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.URI;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.stream.Stream;
+
+/**
+ * The semantic analysis of javalang-compiler 2.x lists the classes of the
+ * Java runtime by reading the <code>rt.jar</code> of the
+ * <code>sun.boot.class.path</code> property, which only exists up to Java 8.
+ * On newer runtimes, this class writes a jar with the names of the classes
+ * of the runtime image, as empty entries, and sets the property to it. The
+ * classes themselves are still loaded from the runtime.
+ */
+final class RuntimeClassIndex {
+
+   private static final String BOOT_CLASS_PATH = "sun.boot.class.path";
+
+   private RuntimeClassIndex() {
+   }
+
+   /**
+    * Sets the property, unless the runtime already has it. It must be called
+    * before the first analysis.
+    */
+   static synchronized void install() throws IOException {
+      if (System.getProperty(BOOT_CLASS_PATH) != null) {
+         return;
+      }
+      Path dir = Files.createTempDirectory("walkmod-runtime");
+      Path jar = dir.resolve("rt.jar");
+      FileSystem jrt = FileSystems.getFileSystem(URI.create("jrt:/"));
+      Set<String> names = new HashSet<>();
+      try (OutputStream file = Files.newOutputStream(jar);
+            JarOutputStream out = new JarOutputStream(file);
+            Stream<Path> modules = Files.list(jrt.getPath("/modules"))) {
+         for (Path module : (Iterable<Path>) modules::iterator) {
+            List<Path> classes;
+            try (Stream<Path> paths = Files.walk(module)) {
+               classes = paths.filter(path -> path.toString().endsWith(".class")).toList();
+            }
+            for (Path path : classes) {
+               String name = module.relativize(path).toString();
+               if (!name.equals("module-info.class") && names.add(name)) {
+                  out.putNextEntry(new JarEntry(name));
+                  out.closeEntry();
+               }
+            }
+         }
+      }
+      jar.toFile().deleteOnExit();
+      dir.toFile().deleteOnExit();
+      System.setProperty(BOOT_CLASS_PATH, jar.toString());
+   }
+}
@@ -0,0 +1,100 @@
+package org.walkmod.refactor.batch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Scanner;
+
+import javax.tools.ToolProvider;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class PipelineRefactorTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private void write(File file, String content) throws Exception {
+      file.getParentFile().mkdirs();
+      Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      try {
+         writer.write(content);
+      } finally {
+         writer.close();
+      }
+   }
+
+   private String read(File file) throws Exception {
+      Scanner scanner = new Scanner(file, "UTF-8");
+      try {
+         return scanner.useDelimiter("\\A").next();
+      } finally {
+         scanner.close();
+      }
+   }
+
+   @Test
+   public void testPipelineRefactoring() throws Exception {
+      File src = folder.newFolder("src");
+      File out = folder.newFolder("out");
+      for (int i = 0; i < 20; i++) {
+         write(new File(src, "foo/Foo" + i + ".java"), "package foo; public class Foo" + i + " { Bar bar; }");
+      }
+      write(new File(src, "bar/Baz.java"), "package bar; public class Baz { }");
+
+      Map<String, String> classRules = new HashMap<String, String>();
+      classRules.put("foo.Bar", "foo.BarDAO");
+
+      PipelineRefactor batch = new PipelineRefactor();
+      batch.setSourceDir(src);
+      batch.setOutputDir(out);
+      batch.setThreads(2);
+      batch.setQueueCapacity(2);
+      batch.setIoThreads(3);
+      batch.setClassRefactoringRules(classRules);
+
+      BatchReport report = batch.run();
+
+      Assert.assertEquals(21, report.getFiles());
+      Assert.assertEquals(20, report.getRefactoredFiles());
+      Assert.assertTrue(report.getFailures().isEmpty());
+      for (int i = 0; i < 20; i++) {
+         Assert.assertTrue(read(new File(out, "foo/Foo" + i + ".java")).contains("BarDAO bar;"));
+      }
+      Assert.assertFalse(new File(out, "bar/Baz.java").exists());
+   }
+
+   @Test
+   public void testMethodRules() throws Exception {
+      File src = folder.newFolder("src");
+      File out = folder.newFolder("out");
+      File classes = folder.newFolder("classes");
+      write(new File(src, "foo/Foo.java"),
+            "package foo; import java.util.*; public class Foo { List<String> l; public void hi() { \"hello\".substring(0);}}");
+      Assert.assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, "-d",
+            classes.getAbsolutePath(), new File(src, "foo/Foo.java").getAbsolutePath()));
+
+      Map<String, String> methodRules = new HashMap<String, String>();
+      methodRules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(\"a\")");
+
+      PipelineRefactor batch = new PipelineRefactor();
+      batch.setSourceDir(src);
+      batch.setOutputDir(out);
+      batch.setClasspath(Arrays.asList(classes));
+      batch.setMethodRefactoringRules(methodRules);
+
+      BatchReport report = batch.run();
+
+      Assert.assertEquals(Collections.emptyMap(), report.getFailures());
+      Assert.assertEquals(1, report.getRefactoredFiles());
+      Assert.assertTrue(read(new File(out, "foo/Foo.java")).contains("\"hello\".concat(\"a\")"));
+   }
+}
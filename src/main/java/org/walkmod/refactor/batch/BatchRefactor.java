@@ -0,0 +1,723 @@
+/* 
+  Copyright (C) 2013 Raquel Pau and Albert Coroleu.
+ 
+ Walkmod is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+ 
+ Walkmod is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+ 
+ You should have received a copy of the GNU Lesser General Public License
+ along with Walkmod.  If not, see <http://www.gnu.org/licenses/>.*/
+package org.walkmod.refactor.batch;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.apache.log4j.Logger;
+import org.walkmod.javalang.ASTManager;
+import org.walkmod.javalang.ast.CompilationUnit;
+import org.walkmod.javalang.compiler.symbols.SymbolVisitorAdapter;
+import org.walkmod.refactor.config.KeywordMatcher;
+import org.walkmod.refactor.config.RulePack;
+import org.walkmod.refactor.visitors.ClassOrInterfaceRefactor;
+import org.walkmod.refactor.visitors.MethodRefactor;
+import org.walkmod.refactor.visitors.SourceEdits;
+import org.walkmod.walkers.VisitorContext;
+
+/**
+ * Standalone entry point that applies the method and the class refactoring
+ * rules to all the Java files of a source directory, processing the files in
+ * parallel. Each file is read, parsed, analyzed (only if some method rule
+ * could be applied), refactored and written by a single task, so the result
+ * of each file does not depend on the others nor on the number of threads.
+ * Files that cannot be affected by the rules are not rewritten.
+ * <p>
+ * Notice that the semantic analysis, which only the files affected by the
+ * method rules need, runs one file at a time (see
+ * {@link #setConcurrentAnalysis(boolean)}). Thus, the class rules scale with
+ * the number of threads, but the method rules do not: their throughput is
+ * bounded by the analysis, whatever the number of threads.
+ * </p>
+ */
+public class BatchRefactor {
+
+   private static Logger LOG = Logger.getLogger(BatchRefactor.class);
+
+   /**
+    * The semantic analysis of javalang-compiler keeps its type caches and its
+    * class loader in static fields, so by default only one file is analyzed
+    * at a time. The lock is global: a lock per class loader would not help,
+    * because that state is shared by all the class loaders.
+    */
+   private static final Object ANALYSIS_LOCK = new Object();
+
+   private File sourceDir;
+
+   private File outputDir;
+
+   private List<File> classpath = new LinkedList<File>();
+
+   private String encoding = "UTF-8";
+
+   private int threads = Runtime.getRuntime().availableProcessors();
+
+   private boolean concurrentAnalysis = false;
+
+   private MethodRefactor methodRefactor = new MethodRefactor();
+
+   private Map<String, String> classRules;
+
+   private ClassLoader classLoader;
+
+   private File cacheDir;
+
+   private RefactoringCache cache;
+
+   private File indexFile;
+
+   private boolean scanClassFiles = false;
+
+   private boolean preserveFormatting = false;
+
+   private File patchFile;
+
+   private Writer patchWriter;
+
+   public BatchReport run() throws IOException, InterruptedException {
+      long start = System.currentTimeMillis();
+      List<File> files = setUp();
+      BatchReport report = new BatchReport();
+      if (patchFile != null) {
+         File parent = patchFile.getAbsoluteFile().getParentFile();
+         if (!parent.exists() && !parent.mkdirs() && !parent.exists()) {
+            throw new IOException("The directory [" + parent + "] cannot be created");
+         }
+         patchWriter = new OutputStreamWriter(new FileOutputStream(patchFile), encoding);
+      }
+      try {
+         process(files, report);
+      } finally {
+         if (patchWriter != null) {
+            patchWriter.close();
+            patchWriter = null;
+         }
+      }
+      report.setElapsedMillis(System.currentTimeMillis() - start);
+      LOG.info(report.toString());
+      return report;
+   }
+
+   /**
+    * Loads the classpath and returns the source files, sorted by path.
+    */
+   protected List<File> setUp() throws IOException {
+      if (sourceDir == null || !sourceDir.isDirectory()) {
+         throw new IOException("The source directory [" + sourceDir + "] does not exist");
+      }
+      List<File> files = new ArrayList<File>();
+      collect(sourceDir, files);
+
+      URL[] urls = new URL[classpath.size()];
+      int i = 0;
+      for (File entry : classpath) {
+         urls[i] = entry.toURI().toURL();
+         i++;
+      }
+      classLoader = new URLClassLoader(urls, Thread.currentThread().getContextClassLoader());
+      methodRefactor.setClassLoader(classLoader);
+      cache = null;
+      if (cacheDir != null) {
+         cache = new RefactoringCache(cacheDir, getFingerprint());
+      }
+      if (indexFile != null) {
+         files = getCandidates(SymbolIndex.update(indexFile, sourceDir, files, encoding), files);
+      }
+      if (scanClassFiles) {
+         files = getCandidates(files);
+      }
+      return files;
+   }
+
+   /**
+    * Returns the source files whose compiled classes, in the directories of
+    * the classpath, refer to the source methods of the method rules, through
+    * their source scopes or their subtypes. The compiled classes do not keep
+    * all the class references, so the other files are kept if their text
+    * mentions the simple name of some renamed class.
+    */
+   private List<File> getCandidates(List<File> files) throws IOException {
+      KeywordMatcher classNames = null;
+      if (classRules != null && !classRules.isEmpty()) {
+         Set<String> simpleNames = new HashSet<String>();
+         for (String className : classRules.keySet()) {
+            simpleNames.add(className.substring(className.lastIndexOf('.') + 1));
+         }
+         classNames = new KeywordMatcher(simpleNames);
+      }
+      ClassFileScanner scanner = new ClassFileScanner(methodRefactor.getSourceMethodScopes(), classLoader);
+      for (File entry : classpath) {
+         if (entry.isDirectory()) {
+            scanner.scan(entry);
+         }
+      }
+      int prefix = sourceDir.getAbsolutePath().length() + 1;
+      List<File> result = new ArrayList<File>();
+      for (File file : files) {
+         String path = file.getAbsolutePath().substring(prefix).replace(File.separatorChar, '/');
+         if (scanner.isCandidate(path, file.lastModified())
+               || (classNames != null && classNames.matches(read(file)))) {
+            result.add(file);
+         }
+      }
+      LOG.info(result.size() + " of " + files.size() + " files can be affected by the rules according to their classes");
+      return result;
+   }
+
+   /**
+    * Returns the source files that the index lists for the source methods of
+    * the method rules and for the renamed classes.
+    */
+   private List<File> getCandidates(SymbolIndex index, List<File> files) {
+      Set<String> candidates = new HashSet<String>();
+      for (String methodName : methodRefactor.getSourceMethodNames()) {
+         candidates.addAll(index.findMethodReferences(methodName));
+      }
+      if (classRules != null) {
+         for (String className : classRules.keySet()) {
+            candidates.addAll(index.findTypeReferences(className));
+         }
+      }
+      int prefix = sourceDir.getAbsolutePath().length() + 1;
+      List<File> result = new ArrayList<File>(candidates.size());
+      for (File file : files) {
+         String path = file.getAbsolutePath().substring(prefix).replace(File.separatorChar, '/');
+         if (candidates.contains(path)) {
+            result.add(file);
+         }
+      }
+      LOG.info(result.size() + " of " + files.size() + " files can be affected by the rules");
+      return result;
+   }
+
+   /**
+    * Returns a fingerprint of everything that, besides the contents of a
+    * source file, determines its outcome: the rules, the encoding and the
+    * classpath.
+    */
+   protected String getFingerprint() {
+      RefactoringCache.Digest digest = new RefactoringCache.Digest();
+      digest.update(encoding);
+      digest.update(isTrackingEdits() ? "edits" : "print");
+      digest.update("methods");
+      for (Map.Entry<String, String> rule : methodRefactor.getRefactoringRules().entrySet()) {
+         digest.update(rule.getKey()).update(rule.getValue());
+      }
+      digest.update("classes");
+      if (classRules != null) {
+         for (Map.Entry<String, String> rule : classRules.entrySet()) {
+            digest.update(rule.getKey()).update(rule.getValue());
+         }
+      }
+      digest.update("classpath");
+      for (File entry : classpath) {
+         fingerprint(entry, digest);
+      }
+      return digest.hash();
+   }
+
+   private static void fingerprint(File file, RefactoringCache.Digest digest) {
+      digest.update(file.getAbsolutePath());
+      if (file.isDirectory()) {
+         File[] children = file.listFiles();
+         if (children != null) {
+            Arrays.sort(children);
+            for (File child : children) {
+               fingerprint(child, digest);
+            }
+         }
+      } else {
+         digest.update(file.lastModified()).update(file.length());
+      }
+   }
+
+   /**
+    * Returns the cache of the incremental mode, or <code>null</code> if it is
+    * disabled.
+    */
+   protected RefactoringCache getCache() {
+      return cache;
+   }
+
+   /**
+    * Refactors the source files and adds their outcome into the report.
+    * Subclasses can override it to schedule the work differently.
+    */
+   protected void process(List<File> files, final BatchReport report) throws InterruptedException {
+      final ClassOrInterfaceRefactor classRefactor = createClassRefactor();
+
+      ExecutorService pool = Executors.newFixedThreadPool(threads);
+      try {
+         List<Future<Boolean>> results = new ArrayList<Future<Boolean>>(files.size());
+         for (final File file : files) {
+            results.add(pool.submit(new Callable<Boolean>() {
+               @Override
+               public Boolean call() throws Exception {
+                  return refactor(file, classRefactor, report);
+               }
+            }));
+         }
+         for (int i = 0; i < files.size(); i++) {
+            try {
+               Boolean refactored = results.get(i).get();
+               if (refactored != null) {
+                  report.addFile(refactored);
+               }
+            } catch (ExecutionException e) {
+               LOG.error("Error processing [" + files.get(i) + "]", e.getCause());
+               report.addFailure(files.get(i), String.valueOf(e.getCause().getMessage()));
+            }
+         }
+      } finally {
+         pool.shutdownNow();
+      }
+   }
+
+   private static void collect(File dir, List<File> files) {
+      File[] children = dir.listFiles();
+      if (children != null) {
+         Arrays.sort(children);
+         for (File child : children) {
+            if (child.isDirectory()) {
+               collect(child, files);
+            } else if (child.getName().endsWith(".java")) {
+               files.add(child);
+            }
+         }
+      }
+   }
+
+   /**
+    * Applies the rules to a source file, unless its outcome is in the cache.
+    * 
+    * @return if the file has been rewritten, or <code>null</code> if the
+    *         outcome has been taken from the cache and it is already in the
+    *         report. Files that no rule changes are not rewritten.
+    */
+   private Boolean refactor(File file, ClassOrInterfaceRefactor classRefactor, BatchReport report)
+         throws Exception {
+      String source = read(file);
+      String key = null;
+      if (cache != null) {
+         key = cache.key(source);
+         RefactoringCache.Outcome outcome = cache.get(key);
+         if (outcome != null) {
+            if (outcome.isRewritten()) {
+               output(file, source, outcome.getOutput(), null);
+            }
+            report.addCachedFile(outcome.isRewritten());
+            return null;
+         }
+      }
+      CompilationUnit cu = ASTManager.parse(source);
+
+      boolean methods = requiresMethodRefactor(source);
+      boolean classes = classRefactor.isApplicable(cu, source);
+      if (!methods && !classes) {
+         if (key != null) {
+            cache.put(key, null);
+         }
+         return false;
+      }
+      VisitorContext ctx = new VisitorContext();
+      SourceEdits edits = trackEdits(ctx);
+      if (methods) {
+         analyze(cu);
+         cu.accept(methodRefactor, ctx);
+      }
+      if (classes) {
+         cu.accept(classRefactor, ctx);
+      }
+      if (!MethodRefactor.isModified(ctx)) {
+         if (key != null) {
+            cache.put(key, null);
+         }
+         return false;
+      }
+      String output = print(cu, source, edits);
+      output(file, source, output, edits);
+      if (key != null) {
+         cache.put(key, output);
+      }
+      return true;
+   }
+
+   /**
+    * Checks, without parsing it, if some method rule could be applied to a
+    * source file. Only these files need the semantic analysis.
+    */
+   protected boolean requiresMethodRefactor(String source) {
+      return methodRefactor.isApplicable(source);
+   }
+
+   /**
+    * Creates the class refactoring visitor, which is shared by all the
+    * threads.
+    */
+   protected ClassOrInterfaceRefactor createClassRefactor() {
+      ClassOrInterfaceRefactor refactor = new ClassOrInterfaceRefactor();
+      refactor.setRefactoringRules(classRules);
+      return refactor;
+   }
+
+   /**
+    * Returns the method refactoring visitor, which is shared by all the
+    * threads.
+    */
+   protected MethodRefactor getMethodRefactor() {
+      return methodRefactor;
+   }
+
+   protected int getThreads() {
+      return threads;
+   }
+
+   protected boolean isConcurrentAnalysis() {
+      return concurrentAnalysis;
+   }
+
+   protected void analyze(CompilationUnit cu) {
+      SymbolVisitorAdapter<Map<String, Object>> analyzer = new SymbolVisitorAdapter<Map<String, Object>>();
+      analyzer.setClassLoader(classLoader);
+      if (concurrentAnalysis) {
+         analyzer.visit(cu, new HashMap<String, Object>());
+      } else {
+         synchronized (ANALYSIS_LOCK) {
+            analyzer.visit(cu, new HashMap<String, Object>());
+         }
+      }
+   }
+
+   /**
+    * Checks if the visitors record the source ranges they change, which is
+    * required to preserve the formatting and to write a patch.
+    */
+   protected boolean isTrackingEdits() {
+      return preserveFormatting || patchFile != null;
+   }
+
+   /**
+    * Adds the edits where the visitors record their changes into the
+    * context, if they are tracked.
+    * 
+    * @return the edits, or <code>null</code> if they are not tracked.
+    */
+   protected SourceEdits trackEdits(VisitorContext ctx) {
+      if (!isTrackingEdits()) {
+         return null;
+      }
+      SourceEdits edits = new SourceEdits();
+      ctx.put(MethodRefactor.SOURCE_EDITS_KEY, edits);
+      return edits;
+   }
+
+   /**
+    * Returns the new text of a refactored compilation unit. The edits are
+    * applied on the original text when all of them can be located there;
+    * otherwise, the whole unit is printed.
+    */
+   protected String print(CompilationUnit cu, String source, SourceEdits edits) {
+      if (edits != null && edits.isComplete()) {
+         return edits.apply(source);
+      }
+      return cu.toString();
+   }
+
+   /**
+    * Writes the new text of a refactored file or, if there is a patch file,
+    * appends its unified diff there.
+    */
+   protected void output(File file, String source, String output, SourceEdits edits) throws IOException {
+      if (patchWriter == null) {
+         write(getTarget(file), output);
+         return;
+      }
+      String path = file.getAbsolutePath().substring(sourceDir.getAbsolutePath().length() + 1)
+            .replace(File.separatorChar, '/');
+      String patch;
+      if (edits != null && edits.isComplete()) {
+         patch = edits.diff(path, source);
+      } else {
+         patch = SourceEdits.diff(path, source, output);
+      }
+      synchronized (patchWriter) {
+         patchWriter.write(patch);
+      }
+   }
+
+   protected File getTarget(File file) {
+      if (outputDir == null) {
+         return file;
+      }
+      String path = file.getAbsolutePath().substring(sourceDir.getAbsolutePath().length());
+      return new File(outputDir, path);
+   }
+
+   protected String read(File file) throws IOException {
+      StringBuilder sb = new StringBuilder((int) file.length());
+      Reader reader = new InputStreamReader(new FileInputStream(file), encoding);
+      try {
+         char[] buffer = new char[8192];
+         int read = reader.read(buffer);
+         while (read != -1) {
+            sb.append(buffer, 0, read);
+            read = reader.read(buffer);
+         }
+      } finally {
+         reader.close();
+      }
+      return sb.toString();
+   }
+
+   protected void write(File file, String content) throws IOException {
+      File parent = file.getParentFile();
+      if (parent != null && !parent.exists() && !parent.mkdirs() && !parent.exists()) {
+         throw new IOException("The directory [" + parent + "] cannot be created");
+      }
+      Writer writer = new OutputStreamWriter(new FileOutputStream(file), encoding);
+      try {
+         writer.write(content);
+      } finally {
+         writer.close();
+      }
+   }
+
+   /**
+    * Enables the incremental mode, which stores the outcome of each file in a
+    * cache directory and reuses it, without parsing the file, while neither
+    * its contents nor the configuration change.
+    * 
+    * @param cacheDir
+    *           the cache directory, or <code>null</code> to disable it.
+    */
+   public void setCacheDir(File cacheDir) {
+      this.cacheDir = cacheDir;
+   }
+
+   /**
+    * Enables the symbol index, which is stored in a file and updated at the
+    * beginning of each run. Only the files that the index lists for the
+    * rules are processed.
+    * 
+    * @param indexFile
+    *           the index file, or <code>null</code> to process all the files.
+    */
+   public void setIndexFile(File indexFile) {
+      this.indexFile = indexFile;
+   }
+
+   /**
+    * Sets if the source files are selected by reading the constant pools of
+    * their compiled classes, which must be in the directories of the
+    * classpath. The source files without up to date classes are always
+    * processed. Disabled by default.
+    */
+   public void setScanClassFiles(boolean scanClassFiles) {
+      this.scanClassFiles = scanClassFiles;
+   }
+
+   /**
+    * Sets if the changes are applied on the original text of the files,
+    * which keeps the formatting of the unchanged code, instead of printing
+    * the whole compilation units. Disabled by default.
+    */
+   public void setPreserveFormatting(boolean preserveFormatting) {
+      this.preserveFormatting = preserveFormatting;
+   }
+
+   /**
+    * Sets a file where a unified diff of the changes is written, instead of
+    * writing the refactored files.
+    * 
+    * @param patchFile
+    *           the patch file, or <code>null</code> to write the refactored
+    *           files.
+    */
+   public void setPatchFile(File patchFile) {
+      this.patchFile = patchFile;
+   }
+
+   public void setSourceDir(File sourceDir) {
+      this.sourceDir = sourceDir;
+   }
+
+   /**
+    * Sets where the refactored files are written, keeping their relative
+    * paths. By default, the source files are overwritten.
+    */
+   public void setOutputDir(File outputDir) {
+      this.outputDir = outputDir;
+   }
+
+   /**
+    * Sets the jars and directories with the compiled classes of the sources
+    * and of their dependencies, which are required to resolve the method
+    * calls.
+    */
+   public void setClasspath(List<File> classpath) {
+      this.classpath = classpath;
+   }
+
+   public void setEncoding(String encoding) {
+      this.encoding = encoding;
+   }
+
+   /**
+    * Sets the number of threads that process the files. The analysis for the
+    * method rules is still serialized, unless the concurrent analysis is
+    * enabled.
+    */
+   public void setThreads(int threads) {
+      if (threads < 1) {
+         throw new IllegalArgumentException("The number of threads must be positive");
+      }
+      this.threads = threads;
+   }
+
+   /**
+    * Sets if several files can be analyzed at the same time. Disabled by
+    * default because the semantic analysis of javalang-compiler keeps its
+    * state in static fields and is not thread-safe, so enabling it can break
+    * the analysis of some files. The parsing, the refactoring and the writing
+    * of the files always run in parallel.
+    */
+   public void setConcurrentAnalysis(boolean concurrentAnalysis) {
+      this.concurrentAnalysis = concurrentAnalysis;
+   }
+
+   public void setMethodRefactoringRules(Map<String, String> methodRules) throws Exception {
+      methodRefactor.setRefactoringRules(methodRules);
+   }
+
+   public void setMethodRefactoringConfigFile(String configFile) throws Exception {
+      methodRefactor.setRefactoringConfigFile(configFile);
+   }
+
+   public void setClassRefactoringRules(Map<String, String> classRules) {
+      this.classRules = classRules;
+   }
+
+   public void setClassRefactoringConfigFile(String configFile) throws Exception {
+      ClassOrInterfaceRefactor refactor = new ClassOrInterfaceRefactor();
+      refactor.setRefactoringConfigFile(configFile);
+      this.classRules = refactor.getRefactoringRules();
+   }
+
+   /**
+    * Loads the method and class rules from a precompiled rule pack.
+    */
+   public void setRulePackFile(String rulePackFile) throws IOException {
+      RulePack pack = RulePack.load(new File(rulePackFile));
+      methodRefactor.setRulePack(pack);
+      this.classRules = pack.getClassRules();
+   }
+
+   public static void main(String[] args) throws Exception {
+      execute(new BatchRefactor(), args);
+   }
+
+   /**
+    * Configures the batch with the command line arguments and runs it.
+    */
+   static void execute(BatchRefactor batch, String[] args) throws Exception {
+      int i = 0;
+      while (i < args.length - 1 && args[i].startsWith("-")) {
+         String option = args[i];
+         if ("-concurrentAnalysis".equals(option)) {
+            batch.setConcurrentAnalysis(true);
+            i++;
+         } else if ("-scanClassFiles".equals(option)) {
+            batch.setScanClassFiles(true);
+            i++;
+         } else if ("-preserveFormatting".equals(option)) {
+            batch.setPreserveFormatting(true);
+            i++;
+         } else {
+            String value = args[i + 1];
+            if ("-cp".equals(option) || "-classpath".equals(option)) {
+               List<File> classpath = new LinkedList<File>();
+               for (String entry : value.split(File.pathSeparator)) {
+                  if (entry.length() > 0) {
+                     classpath.add(new File(entry));
+                  }
+               }
+               batch.setClasspath(classpath);
+            } else if ("-methods".equals(option)) {
+               batch.setMethodRefactoringConfigFile(value);
+            } else if ("-classes".equals(option)) {
+               batch.setClassRefactoringConfigFile(value);
+            } else if ("-pack".equals(option)) {
+               batch.setRulePackFile(value);
+            } else if ("-index".equals(option)) {
+               batch.setIndexFile(new File(value));
+            } else if ("-cache".equals(option)) {
+               batch.setCacheDir(new File(value));
+            } else if ("-patch".equals(option)) {
+               batch.setPatchFile(new File(value));
+            } else if ("-out".equals(option)) {
+               batch.setOutputDir(new File(value));
+            } else if ("-encoding".equals(option)) {
+               batch.setEncoding(value);
+            } else if ("-threads".equals(option)) {
+               batch.setThreads(Integer.parseInt(value));
+            } else {
+               usage(batch);
+               return;
+            }
+            i += 2;
+         }
+      }
+      if (i != args.length - 1) {
+         usage(batch);
+         return;
+      }
+      batch.setSourceDir(new File(args[i]));
+      BatchReport report = batch.run();
+      System.out.println(report);
+      if (!report.getFailures().isEmpty()) {
+         System.exit(1);
+      }
+   }
+
+   private static void usage(BatchRefactor batch) {
+      System.err.println("Usage: " + batch.getClass().getName()
+            + " [-cp <classpath>] [-methods <rules.json>] [-classes <rules.json>] [-pack <rules.pack>]"
+            + " [-cache <dir>] [-index <file>] [-out <dir>] [-patch <file>] [-encoding <encoding>]"
+            + " [-threads <n>] [-concurrentAnalysis] [-scanClassFiles] [-preserveFormatting] <source dir>");
+   }
+}
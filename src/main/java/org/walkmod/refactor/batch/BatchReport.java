@@ -0,0 +1,108 @@
+/* 
+  Copyright (C) 2013 Raquel Pau and Albert Coroleu.
+ 
+ Walkmod is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+ 
+ Walkmod is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+ 
+ You should have received a copy of the GNU Lesser General Public License
+ along with Walkmod.  If not, see <http://www.gnu.org/licenses/>.*/
+package org.walkmod.refactor.batch;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Summary of a {@link BatchRefactor} execution.
+ */
+public class BatchReport {
+
+   private int files;
+
+   private int refactoredFiles;
+
+   private int cachedFiles;
+
+   private long elapsedMillis;
+
+   private Map<File, String> failures = new TreeMap<File, String>();
+
+   synchronized void addFile(boolean refactored) {
+      files++;
+      if (refactored) {
+         refactoredFiles++;
+      }
+   }
+
+   synchronized void addCachedFile(boolean refactored) {
+      addFile(refactored);
+      cachedFiles++;
+   }
+
+   synchronized void addFailure(File file, String message) {
+      files++;
+      failures.put(file, message);
+   }
+
+   synchronized void setElapsedMillis(long elapsedMillis) {
+      this.elapsedMillis = elapsedMillis;
+   }
+
+   /**
+    * Number of source files, including those that have failed.
+    */
+   public synchronized int getFiles() {
+      return files;
+   }
+
+   /**
+    * Number of source files that have been rewritten.
+    */
+   public synchronized int getRefactoredFiles() {
+      return refactoredFiles;
+   }
+
+   /**
+    * Number of source files whose outcome has been taken from the cache,
+    * without parsing them.
+    */
+   public synchronized int getCachedFiles() {
+      return cachedFiles;
+   }
+
+   /**
+    * Error messages of the source files that could not be processed, sorted
+    * by file.
+    */
+   public synchronized Map<File, String> getFailures() {
+      return Collections.unmodifiableMap(new TreeMap<File, String>(failures));
+   }
+
+   public synchronized long getElapsedMillis() {
+      return elapsedMillis;
+   }
+
+   /**
+    * Processed files per second.
+    */
+   public synchronized double getThroughput() {
+      if (elapsedMillis == 0) {
+         return files;
+      }
+      return files * 1000.0 / elapsedMillis;
+   }
+
+   @Override
+   public synchronized String toString() {
+      return files + " files (" + refactoredFiles + " refactored, " + cachedFiles + " cached, " + failures.size() + " failed) in "
+            + elapsedMillis + " ms: " + String.format("%.1f", getThroughput()) + " files/sec";
+   }
+}
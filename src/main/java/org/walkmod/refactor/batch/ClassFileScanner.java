@@ -0,0 +1,313 @@
+/* 
+  Copyright (C) 2013 Raquel Pau and Albert Coroleu.
+ 
+ Walkmod is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+ 
+ Walkmod is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+ 
+ You should have received a copy of the GNU Lesser General Public License
+ along with Walkmod.  If not, see <http://www.gnu.org/licenses/>.*/
+package org.walkmod.refactor.batch;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Finds the source files that can be affected by the rules by reading the
+ * constant pools of their compiled classes, which is much cheaper than
+ * parsing and analyzing the sources.
+ * 
+ * A class is a hit if its constant pool has a method reference whose name is
+ * the name of a source method of the rules (or a constructor reference to a
+ * class with that simple name) and whose class is the source scope of some of
+ * these rules or a subtype of it. The classes are loaded, without
+ * initializing them, to check the subtypes; if some of them cannot be loaded,
+ * the name is enough. The hits are mapped to their source files through the
+ * package of the class and its <code>SourceFile</code> attribute.
+ * 
+ * The source files that have no compiled classes, or whose classes are older
+ * than the source, are always candidates. Only the method calls are looked
+ * up: the class references that the compiler removes (unused imports,
+ * inlined constants and annotations with source retention) leave no trace in
+ * the constant pool, so the class rules need another filter.
+ */
+public class ClassFileScanner {
+
+   private static final int CLASS_MAGIC = 0xCAFEBABE;
+
+   private final Map<String, Set<String>> methodScopes;
+
+   private final ClassLoader classLoader;
+
+   /**
+    * Loaded classes by name, or <code>null</code> if they cannot be loaded.
+    */
+   private final Map<String, Class<?>> loadedClasses = new HashMap<String, Class<?>>();
+
+   /**
+    * Whether each class of the method references matches each method name.
+    */
+   private final Map<String, Boolean> matchingOwners = new HashMap<String, Boolean>();
+
+   private final Set<String> hits = new HashSet<String>();
+
+   /**
+    * Oldest modification time of the classes of each source file.
+    */
+   private final Map<String, Long> compiledSources = new HashMap<String, Long>();
+
+   /**
+    * @param methodScopes
+    *           source scopes of the method rules, by source method name.
+    * @param classLoader
+    *           the class loader of the classpath, to check the subtypes of
+    *           the source scopes.
+    */
+   public ClassFileScanner(Map<String, ? extends Collection<String>> methodScopes, ClassLoader classLoader) {
+      this.methodScopes = new HashMap<String, Set<String>>();
+      for (Map.Entry<String, ? extends Collection<String>> entry : methodScopes.entrySet()) {
+         this.methodScopes.put(entry.getKey(), new HashSet<String>(entry.getValue()));
+      }
+      this.classLoader = classLoader;
+   }
+
+   /**
+    * Reads the class files of a directory and its subdirectories.
+    */
+   public void scan(File classesDir) throws IOException {
+      File[] children = classesDir.listFiles();
+      if (children != null) {
+         Arrays.sort(children);
+         for (File child : children) {
+            if (child.isDirectory()) {
+               scan(child);
+            } else if (child.getName().endsWith(".class")) {
+               InputStream in = new FileInputStream(child);
+               try {
+                  scan(in, child.lastModified());
+               } catch (IOException e) {
+                  throw new IOException("The class file [" + child + "] cannot be read: " + e.getMessage());
+               } finally {
+                  in.close();
+               }
+            }
+         }
+      }
+   }
+
+   /**
+    * Reads a class file.
+    * 
+    * @param input
+    *           the contents of the class file.
+    * @param lastModified
+    *           modification time of the class file.
+    */
+   public void scan(InputStream input, long lastModified) throws IOException {
+      DataInputStream in = new DataInputStream(new BufferedInputStream(input));
+      if (in.readInt() != CLASS_MAGIC) {
+         throw new IOException("It is not a class file");
+      }
+      skip(in, 4);
+      int count = in.readUnsignedShort();
+      String[] utf8 = new String[count];
+      int[] classes = new int[count];
+      int[] methodRefs = new int[count];
+      int[] names = new int[count];
+      int methodRefsCount = 0;
+      for (int i = 1; i < count; i++) {
+         int tag = in.readUnsignedByte();
+         switch (tag) {
+         case 1:
+            utf8[i] = in.readUTF();
+            break;
+         case 7:
+            classes[i] = in.readUnsignedShort();
+            break;
+         case 10:
+         case 11:
+            // the class of the reference and its name and type
+            methodRefs[methodRefsCount++] = in.readInt();
+            break;
+         case 12:
+            names[i] = in.readUnsignedShort();
+            skip(in, 2);
+            break;
+         case 3:
+         case 4:
+         case 9:
+         case 17:
+         case 18:
+            skip(in, 4);
+            break;
+         case 5:
+         case 6:
+            skip(in, 8);
+            i++;
+            break;
+         case 8:
+         case 16:
+         case 19:
+         case 20:
+            skip(in, 2);
+            break;
+         case 15:
+            skip(in, 3);
+            break;
+         default:
+            throw new IOException("Unknown constant pool tag " + tag);
+         }
+      }
+      boolean hit = false;
+      for (int i = 0; i < methodRefsCount && !hit; i++) {
+         String name = utf8[names[methodRefs[i] & 0xffff]];
+         String owner = utf8[classes[methodRefs[i] >>> 16]];
+         if ("<init>".equals(name)) {
+            name = owner.substring(Math.max(owner.lastIndexOf('/'), owner.lastIndexOf('$')) + 1);
+         }
+         Set<String> scopes = methodScopes.get(name);
+         hit = scopes != null && isSubtype(owner, name, scopes);
+      }
+
+      skip(in, 2);
+      String thisClass = utf8[classes[in.readUnsignedShort()]];
+      skip(in, 2);
+      skip(in, 2 * in.readUnsignedShort());
+      for (int members = 0; members < 2; members++) {
+         int membersCount = in.readUnsignedShort();
+         for (int i = 0; i < membersCount; i++) {
+            skip(in, 6);
+            skipAttributes(in);
+         }
+      }
+      String sourceFile = null;
+      int attributes = in.readUnsignedShort();
+      for (int i = 0; i < attributes; i++) {
+         String name = utf8[in.readUnsignedShort()];
+         int length = in.readInt();
+         if ("SourceFile".equals(name)) {
+            sourceFile = utf8[in.readUnsignedShort()];
+            skip(in, length - 2);
+         } else {
+            skip(in, length);
+         }
+      }
+      if (sourceFile != null) {
+         int index = thisClass.lastIndexOf('/');
+         String path = index == -1 ? sourceFile : thisClass.substring(0, index + 1) + sourceFile;
+         Long oldest = compiledSources.get(path);
+         if (oldest == null || oldest > lastModified) {
+            compiledSources.put(path, lastModified);
+         }
+         if (hit) {
+            hits.add(path);
+         }
+      }
+   }
+
+   /**
+    * Checks if the class of a method reference, with its internal name, is one
+    * of the source scopes of the rules of the method, or a subtype of them.
+    */
+   private boolean isSubtype(String owner, String methodName, Set<String> scopes) {
+      String key = owner + ' ' + methodName;
+      Boolean result = matchingOwners.get(key);
+      if (result == null) {
+         result = Boolean.FALSE;
+         String className = owner.replace('/', '.');
+         if (scopes.contains(className) || scopes.contains(className.replace('$', '.'))) {
+            result = Boolean.TRUE;
+         } else {
+            Class<?> ownerClass = load(className);
+            for (String scope : scopes) {
+               Class<?> scopeClass = load(scope);
+               if (ownerClass == null || scopeClass == null || scopeClass.isAssignableFrom(ownerClass)) {
+                  result = Boolean.TRUE;
+                  break;
+               }
+            }
+         }
+         matchingOwners.put(key, result);
+      }
+      return result;
+   }
+
+   /**
+    * Loads a class by its binary name or by its canonical name, where the
+    * nested classes are separated by dots.
+    * 
+    * @return the class or <code>null</code> if it cannot be loaded.
+    */
+   private Class<?> load(String className) {
+      if (loadedClasses.containsKey(className)) {
+         return loadedClasses.get(className);
+      }
+      Class<?> result = null;
+      String name = className;
+      while (result == null) {
+         try {
+            result = Class.forName(name, false, classLoader);
+         } catch (ClassNotFoundException e) {
+            int index = name.lastIndexOf('.');
+            if (index == -1) {
+               break;
+            }
+            name = name.substring(0, index) + '$' + name.substring(index + 1);
+         } catch (LinkageError e) {
+            break;
+         }
+      }
+      loadedClasses.put(className, result);
+      return result;
+   }
+
+   /**
+    * Checks if a source file has to be processed.
+    * 
+    * @param path
+    *           path of the source file relative to the source directory, with
+    *           <code>/</code> as separator.
+    * @param lastModified
+    *           modification time of the source file.
+    */
+   public boolean isCandidate(String path, long lastModified) {
+      Long compiled = compiledSources.get(path);
+      return compiled == null || compiled < lastModified || hits.contains(path);
+   }
+
+   private static void skipAttributes(DataInputStream in) throws IOException {
+      int attributes = in.readUnsignedShort();
+      for (int i = 0; i < attributes; i++) {
+         skip(in, 2);
+         skip(in, in.readInt());
+      }
+   }
+
+   private static void skip(DataInputStream in, int bytes) throws IOException {
+      int remaining = bytes;
+      while (remaining > 0) {
+         int skipped = in.skipBytes(remaining);
+         if (skipped <= 0) {
+            throw new EOFException();
+         }
+         remaining -= skipped;
+      }
+   }
+}
@@ -0,0 +1,215 @@
+/* 
+  Copyright (C) 2013 Raquel Pau and Albert Coroleu.
+ 
+ Walkmod is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+ 
+ Walkmod is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+ 
+ You should have received a copy of the GNU Lesser General Public License
+ along with Walkmod.  If not, see <http://www.gnu.org/licenses/>.*/
+package org.walkmod.refactor.batch;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * On-disk cache with the outcome of refactoring each source file, so that a
+ * new run skips the files whose contents have not changed. The entries are
+ * keyed by the hash of the source contents and stored in a directory named
+ * after the fingerprint of the configuration (the rules and the classpath),
+ * so changing the configuration invalidates all the entries.
+ * 
+ * Each entry is a file that starts with a byte that tells if the source has
+ * to be rewritten and, in that case, the refactored contents in UTF-8.
+ * Entries are written to a temporary file and renamed, so concurrent runs
+ * and threads never read partial entries.
+ */
+public class RefactoringCache {
+
+   private static final int UNCHANGED = 'U';
+
+   private static final int REWRITTEN = 'R';
+
+   private final File dir;
+
+   /**
+    * @param cacheDir
+    *           root directory of the cache.
+    * @param fingerprint
+    *           fingerprint of the configuration.
+    */
+   public RefactoringCache(File cacheDir, String fingerprint) throws IOException {
+      dir = new File(cacheDir, fingerprint);
+      if (!dir.isDirectory() && !dir.mkdirs() && !dir.isDirectory()) {
+         throw new IOException("The cache directory [" + dir + "] cannot be created");
+      }
+   }
+
+   public File getDir() {
+      return dir;
+   }
+
+   /**
+    * Returns the key of a source file.
+    * 
+    * @param source
+    *           the contents of the source file.
+    */
+   public String key(String source) {
+      Digest digest = new Digest();
+      digest.update(source);
+      return digest.hash();
+   }
+
+   /**
+    * Returns the stored outcome of a source file.
+    * 
+    * @param key
+    *           the key of the source file.
+    * @return the outcome or <code>null</code> if the source file has not been
+    *         refactored with the same configuration.
+    */
+   public Outcome get(String key) throws IOException {
+      File entry = new File(dir, key);
+      if (!entry.isFile()) {
+         return null;
+      }
+      InputStream in;
+      try {
+         in = new FileInputStream(entry);
+      } catch (IOException e) {
+         // the entry has been removed
+         return null;
+      }
+      try {
+         int type = in.read();
+         if (type == UNCHANGED) {
+            return new Outcome(null);
+         }
+         if (type != REWRITTEN) {
+            return null;
+         }
+         ByteArrayOutputStream contents = new ByteArrayOutputStream((int) entry.length());
+         byte[] buffer = new byte[8192];
+         int read = in.read(buffer);
+         while (read != -1) {
+            contents.write(buffer, 0, read);
+            read = in.read(buffer);
+         }
+         return new Outcome(contents.toString("UTF-8"));
+      } finally {
+         in.close();
+      }
+   }
+
+   /**
+    * Stores the outcome of a source file.
+    * 
+    * @param key
+    *           the key of the source file.
+    * @param output
+    *           the refactored contents, or <code>null</code> if the source
+    *           file is not rewritten.
+    */
+   public void put(String key, String output) throws IOException {
+      File tmp = File.createTempFile(key, ".tmp", dir);
+      OutputStream out = new FileOutputStream(tmp);
+      try {
+         if (output == null) {
+            out.write(UNCHANGED);
+         } else {
+            out.write(REWRITTEN);
+            out.write(output.getBytes("UTF-8"));
+         }
+      } finally {
+         out.close();
+      }
+      File entry = new File(dir, key);
+      if (!tmp.renameTo(entry)) {
+         // another thread or process has stored the same outcome
+         tmp.delete();
+      }
+   }
+
+   /**
+    * Outcome of refactoring a source file.
+    */
+   public static final class Outcome {
+
+      private final String output;
+
+      private Outcome(String output) {
+         this.output = output;
+      }
+
+      public boolean isRewritten() {
+         return output != null;
+      }
+
+      /**
+       * Returns the refactored contents, or <code>null</code> if the source
+       * file is not rewritten.
+       */
+      public String getOutput() {
+         return output;
+      }
+   }
+
+   /**
+    * Incremental SHA-1 digest, used for the keys and for the fingerprints.
+    */
+   public static final class Digest {
+
+      private final MessageDigest digest;
+
+      public Digest() {
+         try {
+            digest = MessageDigest.getInstance("SHA-1");
+         } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+         }
+      }
+
+      public Digest update(String value) {
+         try {
+            digest.update(String.valueOf(value).getBytes("UTF-8"));
+         } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+         }
+         // separator, so that consecutive values are not ambiguous
+         digest.update((byte) 0);
+         return this;
+      }
+
+      public Digest update(long value) {
+         return update(Long.toString(value));
+      }
+
+      /**
+       * Completes the digest and returns it in hexadecimal. The digest is
+       * reset.
+       */
+      public String hash() {
+         StringBuilder sb = new StringBuilder();
+         for (byte b : digest.digest()) {
+            sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+            sb.append(Character.forDigit(b & 0xf, 16));
+         }
+         return sb.toString();
+      }
+   }
+}
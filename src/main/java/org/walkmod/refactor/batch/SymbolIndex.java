@@ -0,0 +1,564 @@
+/* 
+  Copyright (C) 2013 Raquel Pau and Albert Coroleu.
+ 
+ Walkmod is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+ 
+ Walkmod is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+ 
+ You should have received a copy of the GNU Lesser General Public License
+ along with Walkmod.  If not, see <http://www.gnu.org/licenses/>.*/
+package org.walkmod.refactor.batch;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Persistent reverse index from the names that appear in the source files to
+ * the files that contain them. It is used to schedule only the files that can
+ * be affected by the rules.
+ * 
+ * The names are extracted lexically, without parsing the files: every
+ * identifier (e.g. method and simple type names), every qualified name with
+ * all its prefixes (e.g. imports and fully qualified types) and, for the
+ * package declaration and the on-demand imports, the package followed by
+ * <code>.*</code>. Thus, the files that refer to a method or a type are always
+ * found, as long as the types are referred to through their packages, their
+ * imports or their fully qualified names.
+ * 
+ * The index is stored in a file that is mapped into memory. Its format is
+ * big-endian: a header with the magic number, the format version and the
+ * source directory, the indexed files (relative path, modification time and
+ * length) and the names, sorted, each one with the indexes of its files. The
+ * names are only decoded when they are looked up. The index is updated by
+ * extracting the names of the new and modified files only.
+ * 
+ * Each update writes a new generation of the index, named after the index
+ * file followed by its number (e.g. <code>symbols.idx.3</code>), instead of
+ * replacing the file. Thus, the indexes that are still mapped are never
+ * overwritten, and an interrupted update leaves the previous generation
+ * intact. The older generations are deleted once they can be, which on some
+ * platforms only happens when they are no longer mapped.
+ */
+public class SymbolIndex {
+
+   public static final int MAGIC = 0x57534931;
+
+   public static final int FORMAT_VERSION = 1;
+
+   private static final Logger LOG = Logger.getLogger(SymbolIndex.class);
+
+   private final File file;
+
+   private final ByteBuffer buffer;
+
+   private final String sourceDir;
+
+   private final String[] paths;
+
+   private final long[] lastModified;
+
+   private final long[] lengths;
+
+   private final int[] nameOffsets;
+
+   private final String[] names;
+
+   private SymbolIndex(File file, ByteBuffer buffer) throws IOException {
+      this.file = file;
+      this.buffer = buffer;
+      try {
+         if (buffer.getInt() != MAGIC) {
+            throw new IOException("The file [" + file + "] is not a symbol index");
+         }
+         int version = buffer.getInt();
+         if (version != FORMAT_VERSION) {
+            throw new IOException("The symbol index [" + file + "] has the unsupported version " + version);
+         }
+         sourceDir = readString(buffer);
+         int filesCount = buffer.getInt();
+         paths = new String[filesCount];
+         lastModified = new long[filesCount];
+         lengths = new long[filesCount];
+         for (int i = 0; i < filesCount; i++) {
+            paths[i] = readString(buffer);
+            lastModified[i] = buffer.getLong();
+            lengths[i] = buffer.getLong();
+         }
+         int namesCount = buffer.getInt();
+         nameOffsets = new int[namesCount];
+         names = new String[namesCount];
+         for (int i = 0; i < namesCount; i++) {
+            nameOffsets[i] = buffer.position();
+            int length = buffer.getInt();
+            buffer.position(buffer.position() + length);
+            int postings = buffer.getInt();
+            buffer.position(buffer.position() + postings * 4);
+         }
+      } catch (BufferUnderflowException e) {
+         throw new IOException("The symbol index [" + file + "] is truncated");
+      } catch (IllegalArgumentException e) {
+         throw new IOException("The symbol index [" + file + "] is truncated");
+      }
+   }
+
+   /**
+    * Maps the last generation of an index into memory.
+    * 
+    * @param file
+    *           the index file, without the generation number.
+    */
+   public static SymbolIndex load(File file) throws IOException {
+      File current = getGeneration(file, getLastGeneration(file));
+      if (current == null) {
+         throw new FileNotFoundException("The symbol index [" + file + "] does not exist");
+      }
+      return map(current);
+   }
+
+   private static SymbolIndex map(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         FileChannel channel = raf.getChannel();
+         return new SymbolIndex(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+      } finally {
+         raf.close();
+      }
+   }
+
+   /**
+    * Loads the index and updates it with the current state of the source
+    * files, extracting the names of the new and modified files only. If the
+    * index does not exist, or it belongs to another source directory, it is
+    * built from scratch.
+    * 
+    * @param file
+    *           the index file.
+    * @param sourceDir
+    *           the directory of the source files.
+    * @param sourceFiles
+    *           the source files, inside the source directory.
+    * @param encoding
+    *           the encoding of the source files.
+    * @return the updated index.
+    */
+   public static SymbolIndex update(File file, File sourceDir, List<File> sourceFiles, String encoding)
+         throws IOException {
+      SymbolIndex previous = null;
+      String dir = sourceDir.getAbsolutePath();
+      int generation = getLastGeneration(file);
+      if (generation > 0) {
+         try {
+            previous = map(getGeneration(file, generation));
+            if (!previous.sourceDir.equals(dir)) {
+               previous = null;
+            }
+         } catch (IOException e) {
+            LOG.warn("The symbol index [" + file + "] is rebuilt: " + e.getMessage());
+         }
+      }
+      Map<String, Integer> previousFiles = new HashMap<String, Integer>();
+      if (previous != null) {
+         for (int i = 0; i < previous.paths.length; i++) {
+            previousFiles.put(previous.paths[i], i);
+         }
+      }
+      int prefix = dir.length() + 1;
+      Map<String, File> files = new TreeMap<String, File>();
+      Set<Integer> unchanged = new HashSet<Integer>();
+      for (File sourceFile : sourceFiles) {
+         String path = sourceFile.getAbsolutePath().substring(prefix).replace(File.separatorChar, '/');
+         files.put(path, sourceFile);
+         Integer id = previousFiles.get(path);
+         if (id != null && previous.lastModified[id] == sourceFile.lastModified()
+               && previous.lengths[id] == sourceFile.length()) {
+            unchanged.add(id);
+         }
+      }
+      if (previous != null && unchanged.size() == files.size() && files.size() == previous.paths.length) {
+         return previous;
+      }
+
+      Map<String, Set<String>> namesByFile = new HashMap<String, Set<String>>();
+      if (previous != null && !unchanged.isEmpty()) {
+         ByteBuffer in = previous.buffer.duplicate();
+         for (int i = 0; i < previous.nameOffsets.length; i++) {
+            int postings = skipName(in, previous.nameOffsets[i]);
+            String name = null;
+            for (int j = 0; j < postings; j++) {
+               int id = in.getInt();
+               if (unchanged.contains(id)) {
+                  if (name == null) {
+                     name = previous.getName(i);
+                  }
+                  String path = previous.paths[id];
+                  Set<String> fileNames = namesByFile.get(path);
+                  if (fileNames == null) {
+                     fileNames = new HashSet<String>();
+                     namesByFile.put(path, fileNames);
+                  }
+                  fileNames.add(name);
+               }
+            }
+         }
+      }
+      int updated = 0;
+      for (Map.Entry<String, File> entry : files.entrySet()) {
+         Integer id = previousFiles.get(entry.getKey());
+         if (id == null || !unchanged.contains(id)) {
+            namesByFile.put(entry.getKey(), extractNames(read(entry.getValue(), encoding)));
+            updated++;
+         }
+      }
+      LOG.info("The symbol index [" + file + "] has been updated with " + updated + " files");
+      File next = getGeneration(file, generation + 1);
+      write(next, dir, files, namesByFile);
+      deleteGenerations(file, generation + 1);
+      return map(next);
+   }
+
+   /**
+    * Returns the file of a generation of the index, or null for the
+    * generation 0, which means that there is no index.
+    */
+   private static File getGeneration(File file, int generation) {
+      if (generation == 0) {
+         return null;
+      }
+      return new File(file.getAbsoluteFile().getParentFile(), file.getName() + "." + generation);
+   }
+
+   /**
+    * Returns the number of the last generation of the index, or 0 if there
+    * is none.
+    */
+   private static int getLastGeneration(File file) {
+      int result = 0;
+      for (int generation : getGenerations(file)) {
+         result = Math.max(result, generation);
+      }
+      return result;
+   }
+
+   private static List<Integer> getGenerations(File file) {
+      List<Integer> result = new ArrayList<Integer>();
+      String prefix = file.getName() + ".";
+      String[] names = file.getAbsoluteFile().getParentFile().list();
+      if (names != null) {
+         for (String name : names) {
+            if (name.startsWith(prefix) && name.length() > prefix.length()) {
+               try {
+                  result.add(Integer.parseInt(name.substring(prefix.length())));
+               } catch (NumberFormatException e) {
+                  // not a generation, e.g. a temporary file
+               }
+            }
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Deletes the generations older than the last one. Those that cannot be
+    * deleted yet, e.g. because they are mapped, are deleted by a later
+    * update.
+    */
+   private static void deleteGenerations(File file, int last) {
+      for (int generation : getGenerations(file)) {
+         if (generation < last) {
+            File old = getGeneration(file, generation);
+            if (!old.delete()) {
+               LOG.debug("The symbol index [" + old + "] cannot be deleted yet");
+            }
+         }
+      }
+   }
+
+   private static void write(File file, String sourceDir, Map<String, File> files,
+         Map<String, Set<String>> namesByFile) throws IOException {
+      Map<String, List<Integer>> postings = new TreeMap<String, List<Integer>>();
+      int id = 0;
+      for (String path : files.keySet()) {
+         Set<String> fileNames = namesByFile.get(path);
+         if (fileNames != null) {
+            for (String name : fileNames) {
+               List<Integer> ids = postings.get(name);
+               if (ids == null) {
+                  ids = new ArrayList<Integer>(1);
+                  postings.put(name, ids);
+               }
+               ids.add(id);
+            }
+         }
+         id++;
+      }
+      File parent = file.getAbsoluteFile().getParentFile();
+      if (!parent.isDirectory() && !parent.mkdirs() && !parent.isDirectory()) {
+         throw new IOException("The directory [" + parent + "] cannot be created");
+      }
+      File tmp = File.createTempFile(file.getName() + "-", ".tmp", parent);
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+      try {
+         out.writeInt(MAGIC);
+         out.writeInt(FORMAT_VERSION);
+         writeString(out, sourceDir);
+         out.writeInt(files.size());
+         for (Map.Entry<String, File> entry : files.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeLong(entry.getValue().lastModified());
+            out.writeLong(entry.getValue().length());
+         }
+         out.writeInt(postings.size());
+         for (Map.Entry<String, List<Integer>> entry : postings.entrySet()) {
+            writeString(out, entry.getKey());
+            out.writeInt(entry.getValue().size());
+            for (Integer fileId : entry.getValue()) {
+               out.writeInt(fileId);
+            }
+         }
+      } finally {
+         out.close();
+      }
+      // the generation is new, so nothing is replaced
+      if (!tmp.renameTo(file)) {
+         tmp.delete();
+         throw new IOException("The symbol index [" + file + "] cannot be written");
+      }
+   }
+
+   /**
+    * Returns the file of the generation of the index.
+    */
+   public File getFile() {
+      return file;
+   }
+
+   /**
+    * Number of indexed files.
+    */
+   public int getFilesCount() {
+      return paths.length;
+   }
+
+   /**
+    * Returns the paths, relative to the source directory and separated by
+    * <code>/</code>, of the files that contain a name.
+    */
+   public Set<String> getFiles(String name) {
+      Set<String> result = new TreeSet<String>();
+      int low = 0;
+      int high = nameOffsets.length - 1;
+      while (low <= high) {
+         int middle = (low + high) >>> 1;
+         int comparison = getName(middle).compareTo(name);
+         if (comparison < 0) {
+            low = middle + 1;
+         } else if (comparison > 0) {
+            high = middle - 1;
+         } else {
+            ByteBuffer in = buffer.duplicate();
+            int postings = skipName(in, nameOffsets[middle]);
+            for (int i = 0; i < postings; i++) {
+               result.add(paths[in.getInt()]);
+            }
+            return result;
+         }
+      }
+      return result;
+   }
+
+   /**
+    * Returns the files that may call a method (or a constructor, whose name
+    * is the simple name of its type).
+    */
+   public Set<String> findMethodReferences(String methodName) {
+      return getFiles(methodName);
+   }
+
+   /**
+    * Returns the files that may refer to a type: those that contain its
+    * simple name and that belong to, or import from, its package or one of
+    * its enclosing types, or that contain its fully qualified name.
+    */
+   public Set<String> findTypeReferences(String fullName) {
+      String name = fullName.replace('$', '.');
+      int index = name.lastIndexOf('.');
+      Set<String> result = getFiles(name.substring(index + 1));
+      if (index == -1 || name.substring(0, index).equals("java.lang")) {
+         return result;
+      }
+      Set<String> qualified = new HashSet<String>();
+      int end = name.indexOf('.');
+      while (end != -1) {
+         String prefix = name.substring(0, end);
+         qualified.addAll(getFiles(prefix + ".*"));
+         if (prefix.indexOf('.') != -1) {
+            qualified.addAll(getFiles(prefix));
+         }
+         end = name.indexOf('.', end + 1);
+      }
+      qualified.addAll(getFiles(name));
+      result.retainAll(qualified);
+      return result;
+   }
+
+   /**
+    * Moves to the postings of a name.
+    * 
+    * @return the number of files of the name.
+    */
+   private static int skipName(ByteBuffer in, int offset) {
+      in.position(offset);
+      int length = in.getInt();
+      in.position(in.position() + length);
+      return in.getInt();
+   }
+
+   private String getName(int index) {
+      String result = names[index];
+      if (result == null) {
+         // decoding it twice in a race is harmless
+         ByteBuffer in = buffer.duplicate();
+         in.position(nameOffsets[index]);
+         result = readString(in);
+         names[index] = result;
+      }
+      return result;
+   }
+
+   /**
+    * Extracts the names of a source file, skipping its comments and its
+    * literals.
+    */
+   static Set<String> extractNames(String source) {
+      Set<String> result = new HashSet<String>();
+      StringBuilder qualifiedName = new StringBuilder();
+      boolean dot = false;
+      // "package" or "import" while the declaration lasts
+      String declaration = null;
+      int length = source.length();
+      int i = 0;
+      while (i < length) {
+         char c = source.charAt(i);
+         if (Character.isJavaIdentifierStart(c)) {
+            int start = i;
+            while (i < length && Character.isJavaIdentifierPart(source.charAt(i))) {
+               i++;
+            }
+            String identifier = source.substring(start, i);
+            result.add(identifier);
+            if (dot && qualifiedName.length() > 0) {
+               qualifiedName.append('.').append(identifier);
+               result.add(qualifiedName.toString());
+            } else {
+               qualifiedName.setLength(0);
+               if (identifier.equals("package") || identifier.equals("import")) {
+                  declaration = identifier;
+               } else if (!identifier.equals("static") || !"import".equals(declaration)) {
+                  qualifiedName.append(identifier);
+               }
+            }
+            dot = false;
+         } else if (Character.isDigit(c)) {
+            while (i < length && (Character.isJavaIdentifierPart(source.charAt(i)) || source.charAt(i) == '.')) {
+               i++;
+            }
+            qualifiedName.setLength(0);
+            dot = false;
+         } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '/') {
+            i = source.indexOf('\n', i);
+            i = i == -1 ? length : i;
+         } else if (c == '/' && i + 1 < length && source.charAt(i + 1) == '*') {
+            i = source.indexOf("*/", i + 2);
+            i = i == -1 ? length : i + 2;
+         } else if (c == '"' || c == '\'') {
+            i++;
+            while (i < length && source.charAt(i) != c) {
+               i += source.charAt(i) == '\\' ? 2 : 1;
+            }
+            i++;
+            qualifiedName.setLength(0);
+            dot = false;
+         } else if (Character.isWhitespace(c)) {
+            i++;
+         } else {
+            if (c == '.' && !dot && qualifiedName.length() > 0) {
+               dot = true;
+            } else {
+               if (c == '*' && dot && "import".equals(declaration)) {
+                  result.add(qualifiedName + ".*");
+               } else if (c == ';' && "package".equals(declaration) && qualifiedName.length() > 0) {
+                  // the types of the same package are visible without imports
+                  result.add(qualifiedName + ".*");
+               }
+               if (c == ';') {
+                  declaration = null;
+               }
+               qualifiedName.setLength(0);
+               dot = false;
+            }
+            i++;
+         }
+      }
+      return result;
+   }
+
+   private static String read(File file, String encoding) throws IOException {
+      StringBuilder sb = new StringBuilder((int) file.length());
+      Reader reader = new InputStreamReader(new FileInputStream(file), encoding);
+      try {
+         char[] chars = new char[8192];
+         int read = reader.read(chars);
+         while (read != -1) {
+            sb.append(chars, 0, read);
+            read = reader.read(chars);
+         }
+      } finally {
+         reader.close();
+      }
+      return sb.toString();
+   }
+
+   private static String readString(ByteBuffer in) {
+      byte[] bytes = new byte[in.getInt()];
+      in.get(bytes);
+      try {
+         return new String(bytes, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   private static void writeString(DataOutputStream out, String value) throws IOException {
+      byte[] bytes = value.getBytes("UTF-8");
+      out.writeInt(bytes.length);
+      out.write(bytes);
+   }
+}
@@ -0,0 +1,163 @@
+/*
+  Copyright (C) 2013 Raquel Pau and Albert Coroleu.
+
+ Walkmod is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+
+ Walkmod is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+
+ You should have received a copy of the GNU Lesser General Public License
+ along with Walkmod.  If not, see <http://www.gnu.org/licenses/>.*/
+package org.walkmod.refactor.config;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+
+/**
+ * Aho-Corasick automaton that finds if a text contains some of a set of Java
+ * identifiers. Only whole identifiers are reported: a keyword must not be
+ * preceded or followed by a Java identifier character. The automaton is
+ * immutable once it is built, so it can be shared between threads.
+ */
+public class KeywordMatcher {
+
+   private final char[][] labels;
+
+   private final int[][] targets;
+
+   private final int[] failures;
+
+   /**
+    * Lengths of the keywords that end at each state, including those found
+    * following the failure links.
+    */
+   private final int[][] outputs;
+
+   public KeywordMatcher(Collection<String> keywords) {
+      List<Map<Character, Integer>> transitions = new ArrayList<Map<Character, Integer>>();
+      List<List<Integer>> lengths = new ArrayList<List<Integer>>();
+      transitions.add(new TreeMap<Character, Integer>());
+      lengths.add(new LinkedList<Integer>());
+
+      for (String keyword : keywords) {
+         if (keyword == null || keyword.length() == 0) {
+            continue;
+         }
+         int state = 0;
+         for (int i = 0; i < keyword.length(); i++) {
+            Character c = keyword.charAt(i);
+            Integer next = transitions.get(state).get(c);
+            if (next == null) {
+               next = transitions.size();
+               transitions.add(new TreeMap<Character, Integer>());
+               lengths.add(new LinkedList<Integer>());
+               transitions.get(state).put(c, next);
+            }
+            state = next;
+         }
+         if (!lengths.get(state).contains(keyword.length())) {
+            lengths.get(state).add(keyword.length());
+         }
+      }
+
+      int size = transitions.size();
+      labels = new char[size][];
+      targets = new int[size][];
+      failures = new int[size];
+      outputs = new int[size][];
+      for (int state = 0; state < size; state++) {
+         Map<Character, Integer> map = transitions.get(state);
+         labels[state] = new char[map.size()];
+         targets[state] = new int[map.size()];
+         int i = 0;
+         for (Map.Entry<Character, Integer> entry : map.entrySet()) {
+            labels[state][i] = entry.getKey();
+            targets[state][i] = entry.getValue();
+            i++;
+         }
+      }
+
+      // breadth first traversal to resolve the failure links
+      LinkedList<Integer> queue = new LinkedList<Integer>();
+      for (int child : targets[0]) {
+         failures[child] = 0;
+         queue.add(child);
+      }
+      while (!queue.isEmpty()) {
+         int state = queue.removeFirst();
+         for (int i = 0; i < labels[state].length; i++) {
+            int child = targets[state][i];
+            int fallback = failures[state];
+            int next = step(fallback, labels[state][i]);
+            while (next == -1 && fallback != 0) {
+               fallback = failures[fallback];
+               next = step(fallback, labels[state][i]);
+            }
+            failures[child] = next == -1 ? 0 : next;
+            lengths.get(child).addAll(lengths.get(failures[child]));
+            queue.add(child);
+         }
+      }
+      for (int state = 0; state < size; state++) {
+         List<Integer> stateLengths = lengths.get(state);
+         outputs[state] = new int[stateLengths.size()];
+         int i = 0;
+         for (Integer length : stateLengths) {
+            outputs[state][i] = length;
+            i++;
+         }
+      }
+   }
+
+   private int step(int state, char c) {
+      int pos = Arrays.binarySearch(labels[state], c);
+      if (pos < 0) {
+         return -1;
+      }
+      return targets[state][pos];
+   }
+
+   /**
+    * Checks if the text contains some keyword as a whole identifier.
+    *
+    * @param text
+    *           the text to scan.
+    * @return if some keyword appears in the text.
+    */
+   public boolean matches(CharSequence text) {
+      int state = 0;
+      int length = text.length();
+      for (int i = 0; i < length; i++) {
+         char c = text.charAt(i);
+         int next = step(state, c);
+         while (next == -1 && state != 0) {
+            state = failures[state];
+            next = step(state, c);
+         }
+         state = next == -1 ? 0 : next;
+         for (int keywordLength : outputs[state]) {
+            int start = i - keywordLength + 1;
+            boolean startsIdentifier = start == 0 || !Character.isJavaIdentifierPart(text.charAt(start - 1));
+            boolean endsIdentifier = i + 1 == length || !Character.isJavaIdentifierPart(text.charAt(i + 1));
+            if (startsIdentifier && endsIdentifier) {
+               return true;
+            }
+         }
+      }
+      return false;
+   }
+
+   public boolean isEmpty() {
+      return labels[0].length == 0;
+   }
+}
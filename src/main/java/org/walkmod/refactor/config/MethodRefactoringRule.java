@@ -16,6 +16,8 @@
 
 package org.walkmod.refactor.config;
 
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.LinkedList;
 import java.util.List;
 
@@ -27,6 +29,7 @@ import org.walkmod.javalang.ast.type.ClassOrInterfaceType;
 import org.walkmod.javalang.ast.type.ReferenceType;
 import org.walkmod.javalang.ast.type.VoidType;
 import org.walkmod.javalang.compiler.symbols.SymbolType;
+import org.walkmod.refactor.exceptions.InvalidRefactoringRuleException;
 import org.walkmod.refactor.visitors.ASTTypeNameResolver;
 
 public class MethodRefactoringRule {
@@ -49,17 +52,134 @@ public class MethodRefactoringRule {
 
 	private String implicitExpression;
 
+	private String sourceDefinition;
+
+	private String targetDefinition;
+
+	private boolean compiled = false;
+
+	private SymbolType sourceScopeType;
+
+	private SymbolType[] argTypes;
+
+	private boolean voidResult;
+
+	/**
+	 * Parsed template expressions. Only available once the rule is compiled.
+	 */
+	private volatile Templates templates;
+
 
 	public MethodRefactoringRule(ClassLoader classLoader) {
 		sourceMethod = new MethodHeaderDeclaration();
 		targetMethod = new MethodHeaderDeclaration();
 	}
 
+	/**
+	 * Resolves the source scope and the argument types, parses the template
+	 * expressions once and freezes the rule. After this call, the rule cannot
+	 * be modified, the matching getters return the resolved values without
+	 * any allocation and the template getters return copies of the parsed
+	 * templates.
+	 * 
+	 * @throws InvalidRefactoringRuleException
+	 *             if some template expression cannot be parsed.
+	 */
+	public void compile() throws InvalidRefactoringRuleException {
+		compile(true);
+	}
+
+	/**
+	 * Compiles the rule. If the templates have already been validated (e.g.
+	 * the rule comes from a rule pack), their parsing can be deferred until
+	 * the rule is applied for the first time.
+	 */
+	void compile(boolean parseTemplates) throws InvalidRefactoringRuleException {
+		if (!compiled) {
+			if (parseTemplates) {
+				try {
+					templates = parseTemplates();
+				} catch (ParseException e) {
+					throw new InvalidRefactoringRuleException(
+							"Invalid rule expression for the method "
+									+ getSourceScope() + ":"
+									+ getSourceMethodName() + ". "
+									+ e.getMessage(), e);
+				}
+			}
+			sourceScopeType = new SymbolType(getSourceScope());
+			argTypes = resolveArgTypes();
+			variables = Collections.unmodifiableList(new ArrayList<String>(
+					variables));
+			expressions = Collections.unmodifiableList(new ArrayList<String>(
+					expressions));
+			voidResult = targetMethod.getResult() != null
+					&& targetMethod.getResult().toString().equals("void");
+			compiled = true;
+		}
+	}
+
+	private Templates parseTemplates() throws ParseException {
+		Templates result = new Templates();
+		List<Expression> trees = new ArrayList<Expression>(expressions.size());
+		for (String expression : expressions) {
+			trees.add(parse(expression));
+		}
+		result.expressionTrees = Collections.unmodifiableList(trees);
+		if (resultExpression != null) {
+			result.resultTree = parse(resultExpression);
+		}
+		if (implicitExpression != null) {
+			result.implicitTree = parse(implicitExpression);
+		}
+		return result;
+	}
+
+	private Templates getTemplates() throws ParseException {
+		Templates result = templates;
+		if (result == null) {
+			// parsing it twice in a race is harmless
+			result = parseTemplates();
+			templates = result;
+		}
+		return result;
+	}
+
+	public boolean isCompiled() {
+		return compiled;
+	}
+
+	private void checkNotCompiled() {
+		if (compiled) {
+			throw new IllegalStateException(
+					"The refactoring rule is already compiled and cannot be modified");
+		}
+	}
+
+	/**
+	 * Sets the original text of the rule, as it is written in the
+	 * configuration.
+	 */
+	public void setDefinition(String sourceDefinition, String targetDefinition) {
+		checkNotCompiled();
+		this.sourceDefinition = sourceDefinition;
+		this.targetDefinition = targetDefinition;
+	}
+
+	public String getSourceDefinition() {
+		return sourceDefinition;
+	}
+
+	public String getTargetDefinition() {
+		return targetDefinition;
+	}
+
 	public String getScope() {
 		return targetMethod.getScope();
 	}
 
 	public void setScope(String scope) {
+		checkNotCompiled();
 		this.targetMethod.setScope(scope);
 	}
 
@@ -72,21 +192,49 @@ public class MethodRefactoringRule {
 	 */
 	public List<Expression> getExpressionTreeArgs() throws ParseException {
 		List<Expression> res = new LinkedList<Expression>();
-		for (String expression : expressions) {
-			res.add((Expression) ASTManager.parse(Expression.class, expression));
+		if (compiled) {
+			for (Expression expression : getTemplates().expressionTrees) {
+				res.add(copy(expression));
+			}
+		} else {
+			for (String expression : expressions) {
+				res.add(parse(expression));
+			}
 		}
 		return res;
 	}
 
 	public Expression getResultTreeExpression() throws ParseException {
-		return (Expression) ASTManager.parse(Expression.class, resultExpression);
+		if (compiled) {
+			return copy(getTemplates().resultTree);
+		}
+		return parse(resultExpression);
 	}
 
 	public Expression getImplicitTreeExpression() throws ParseException {
-		return (Expression) ASTManager.parse(Expression.class, implicitExpression);
+		if (compiled) {
+			return copy(getTemplates().implicitTree);
+		}
+		return parse(implicitExpression);
+	}
+
+	private static Expression parse(String expression) throws ParseException {
+		return (Expression) ASTManager.parse(Expression.class, expression);
+	}
+
+	private static Expression copy(Expression template) {
+		if (template == null) {
+			return null;
+		}
+		try {
+			return (Expression) template.clone();
+		} catch (CloneNotSupportedException e) {
+			throw new IllegalStateException(e);
+		}
 	}
 
 	public void setResultExpression(String resultExpression) {
+		checkNotCompiled();
 		if ("void".equals(resultExpression)) {
 			targetMethod.setResult(new VoidType());
 		} 
@@ -100,6 +248,9 @@ public class MethodRefactoringRule {
 	}
 
 	public boolean isVoidResult() {
+		if (compiled) {
+			return voidResult;
+		}
 		return targetMethod.getResult() != null
 				&& targetMethod.getResult().toString().equals("void");
 	}
@@ -109,10 +260,32 @@ public class MethodRefactoringRule {
 	}
 
 	public void setResultVariable(String resultVariable) {
+		checkNotCompiled();
 		this.resultVariable = resultVariable;
 	}
 
+	List<String> getExpressions() {
+		return expressions;
+	}
+
+	String getResultExpression() {
+		return resultExpression;
+	}
+
+	/**
+	 * Returns the names of the source method argument types, as they are
+	 * written in the rule.
+	 */
+	List<String> getArgTypeNames() {
+		List<String> result = new LinkedList<String>();
+		for (Parameter param : sourceMethod.getArgs()) {
+			result.add(((ReferenceType) param.getType()).getType().toString());
+		}
+		return result;
+	}
+
 	public void setExpressions(List<String> expressions) {
+		checkNotCompiled();
 		this.expressions = expressions;
 	}
 
@@ -121,6 +294,7 @@ public class MethodRefactoringRule {
 	}
 
 	public void setIsConstant(Boolean isConstant) {
+		checkNotCompiled();
 		this.isConstant = isConstant;
 	}
 
@@ -129,6 +303,7 @@ public class MethodRefactoringRule {
 	}
 
 	public void setMethodName(String methodName) {
+		checkNotCompiled();
 		this.targetMethod.setName(methodName);
 	}
 
@@ -137,6 +312,7 @@ public class MethodRefactoringRule {
 	}
 
 	public void setVariables(List<String> variables) {
+		checkNotCompiled();
 		this.variables = variables;
 	}
 
@@ -148,7 +324,36 @@ public class MethodRefactoringRule {
 		return implicitExpression != null;
 	}
 
+	/**
+	 * Returns the types of the source method arguments. Once the rule is
+	 * compiled, the returned array is shared and must not be modified.
+	 */
 	public SymbolType[] getArgTypes() {
+		if (compiled) {
+			return argTypes;
+		}
+		return resolveArgTypes();
+	}
+
+	/**
+	 * Checks if the types of the arguments of a call are compatible with the
+	 * argument types of the source method.
+	 */
+	public boolean isCompatible(SymbolType[] args) {
+		SymbolType[] types = getArgTypes();
+		if (args.length != types.length) {
+			return false;
+		}
+		boolean compatible = true;
+		int i = 0;
+		while (compatible && i < args.length) {
+			compatible = args[i].isCompatible(types[i]);
+			i++;
+		}
+		return compatible;
+	}
+
+	private SymbolType[] resolveArgTypes() {
 		List<Parameter> params = sourceMethod.getArgs();
 		SymbolType[] result = new SymbolType[params.size()];
 		int i = 0;
@@ -160,6 +365,7 @@ public class MethodRefactoringRule {
 	}
 
 	public void setArgTypes(List<String> argTypes) {
+		checkNotCompiled();
 		List<Parameter> result = new LinkedList<Parameter>();
 		for (String arg : argTypes) {
 			Parameter tp = new Parameter();
@@ -176,7 +382,16 @@ public class MethodRefactoringRule {
 		return sourceMethod.getScope();
 	}
 
+	/**
+	 * Returns the resolved type of the source scope, or <code>null</code> if
+	 * the rule is not compiled yet.
+	 */
+	public SymbolType getSourceScopeType() {
+		return sourceScopeType;
+	}
+
 	public void setSourceScope(String sourceScope) {
+		checkNotCompiled();
 		this.sourceMethod.setScope(sourceScope);
 	}
 
@@ -185,6 +400,7 @@ public class MethodRefactoringRule {
 	}
 
 	public void setSourceMethodName(String sourceMethodName) {
+		checkNotCompiled();
 		this.sourceMethod.setName(sourceMethodName);
 	}
 
@@ -199,6 +415,7 @@ public class MethodRefactoringRule {
 	}
 
 	public void setImplicitVaribale(String implicitVaribale) {
+		checkNotCompiled();
 		this.implicitVaribale = implicitVaribale;
 	}
 
@@ -207,8 +424,17 @@ public class MethodRefactoringRule {
 	}
 
 	public void setImplicitExpression(String implicitExpression) {
+		checkNotCompiled();
 		this.implicitExpression = implicitExpression;
 	}
 
+	private static final class Templates {
+
+		private List<Expression> expressionTrees;
+
+		private Expression resultTree;
+
+		private Expression implicitTree;
+	}
 
 }
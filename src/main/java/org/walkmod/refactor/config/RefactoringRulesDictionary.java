@@ -15,37 +15,169 @@
  along with Walkmod.  If not, see <http://www.gnu.org/licenses/>.*/
 package org.walkmod.refactor.config;
 
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.apache.log4j.Logger;
 import org.walkmod.javalang.compiler.symbols.SymbolType;
+import org.walkmod.javalang.compiler.types.TypeNotFoundException;
 import org.walkmod.refactor.exceptions.InvalidRefactoringRuleException;
 
 
 public class RefactoringRulesDictionary {
 
-	private Collection<MethodRefactoringRule> refactoringRules;
+	/**
+	 * Rules indexed by the exact name of their source scope, and then by
+	 * source method name and number of arguments, keeping the declaration
+	 * order inside each bucket.
+	 */
+	private Map<String, Map<RuleKey, List<MethodRefactoringRule>>> refactoringRules;
+
+	/**
+	 * Definitions of the rules that are not compiled yet, grouped by the name
+	 * of their source scope. Only used with lazy compilation.
+	 */
+	private Map<String, List<Entry<String, String>>> pendingRules = new HashMap<String, List<Entry<String, String>>>();
+
+	/**
+	 * Errors of the source scopes whose lazy compilation failed. They are
+	 * reported once, and then only the valid rules of the scope are used.
+	 */
+	private Map<String, InvalidRefactoringRuleException> invalidScopes = new HashMap<String, InvalidRefactoringRuleException>();
+
+	private final boolean lazyCompilation;
+
+	private Map<String, String> definitions = new LinkedHashMap<String, String>();
+
+	/**
+	 * Position of each rule, by source definition, in the order the rules were
+	 * added. The candidates of a call are evaluated in this order, so the first
+	 * declared rule wins whatever the scope it is defined for.
+	 */
+	private ConcurrentMap<String, Integer> positions = new ConcurrentHashMap<String, Integer>();
+
+	private final Comparator<MethodRefactoringRule> declarationOrder = new Comparator<MethodRefactoringRule>() {
+		public int compare(MethodRefactoringRule r1, MethodRefactoringRule r2) {
+			return positions.get(r1.getSourceDefinition()).compareTo(
+					positions.get(r2.getSourceDefinition()));
+		}
+	};
+
+	/**
+	 * Names of each class and all its superclasses and interfaces, from the
+	 * most specific to the most generic one.
+	 */
+	private ConcurrentMap<Class<?>, List<String>> hierarchies = new ConcurrentHashMap<Class<?>, List<String>>();
+
+	private List<MethodRefactoringRule> rules = new ArrayList<MethodRefactoringRule>();
+
+	private Set<String> sourceMethodNames = new HashSet<String>();
+
+	/**
+	 * Source scopes of the rules of each source method name.
+	 */
+	private Map<String, Set<String>> sourceMethodScopes = new HashMap<String, Set<String>>();
+
+	private KeywordMatcher sourceMethodsMatcher = new KeywordMatcher(
+			sourceMethodNames);
 
-	
-	
 	private static Logger log = Logger.getLogger(RefactoringRulesDictionary.class);
 	
+	private static final int COMPILER_THREADS = Runtime.getRuntime()
+			.availableProcessors();
+
+	private static final ThreadFactory COMPILER_THREAD_FACTORY = new ThreadFactory() {
+
+		private final AtomicInteger count = new AtomicInteger();
+
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "rules-compiler-"
+					+ count.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	};
+
 	private ClassLoader classLoader = Thread.currentThread().getContextClassLoader();
 
 	public RefactoringRulesDictionary(ClassLoader classLoader) {
-		refactoringRules = new LinkedList<MethodRefactoringRule>();
+		this(classLoader, false);
+	}
+
+	/**
+	 * Creates a dictionary that, with lazy compilation, keeps the rules as
+	 * they are defined and compiles the rules of a source scope the first
+	 * time that a call with a compatible scope type is looked up. Thus, the
+	 * cost of a big library of rules only depends on the scopes that are
+	 * used, but the invalid rules are not reported until they are compiled.
+	 * 
+	 * @param classLoader
+	 *            class loader of the rules.
+	 * @param lazyCompilation
+	 *            if the rules have to be compiled on demand.
+	 */
+	public RefactoringRulesDictionary(ClassLoader classLoader,
+			boolean lazyCompilation) {
+		refactoringRules = new ConcurrentHashMap<String, Map<RuleKey, List<MethodRefactoringRule>>>();
 		this.classLoader = classLoader;
+		this.lazyCompilation = lazyCompilation;
+	}
+
+	public boolean isLazyCompilation() {
+		return lazyCompilation;
 	}
 
 	public MethodRefactoringRule getRefactoringRule(SymbolType scopeType,
 			String method, SymbolType[] args) throws ClassNotFoundException {
 
+		if (args == null) {
+			args = new SymbolType[0];
+		}
+
+		for (MethodRefactoringRule current : getRefactoringRules(scopeType,
+				method, args.length)) {
+
+			if (current.isCompatible(args)) {
+
+				return current;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Returns the rules whose source scope is compatible with the scope type
+	 * and whose source method has the given name and number of arguments, in
+	 * the order they were declared, which is the order they have to be
+	 * evaluated. The result only depends on the parameters, so it can be
+	 * cached by the callers.
+	 */
+	public List<MethodRefactoringRule> getRefactoringRules(
+			SymbolType scopeType, String method, int argsNumber) {
+
 		if (scopeType == null) {
 			throw new IllegalArgumentException("scopeType is null");
 		}
@@ -53,176 +185,588 @@ public class RefactoringRulesDictionary {
 			throw new IllegalArgumentException("method is null");
 		}
 
-		Iterator<MethodRefactoringRule> it = refactoringRules.iterator();
+		RuleKey key = new RuleKey(method, argsNumber);
+		List<MethodRefactoringRule> result = null;
 
-		while (it.hasNext()) {
+		for (String scope : getScopeNames(scopeType)) {
+			Map<RuleKey, List<MethodRefactoringRule>> scopeRules = refactoringRules
+					.get(scope);
+			if (scopeRules == null && lazyCompilation) {
+				scopeRules = compileScope(scope);
+			}
+			if (scopeRules != null) {
+				List<MethodRefactoringRule> candidates = scopeRules.get(key);
+				if (candidates != null) {
+					if (result == null) {
+						result = new LinkedList<MethodRefactoringRule>();
+					}
+					result.addAll(candidates);
+				}
+			}
+		}
+		if (result == null) {
+			return Collections.emptyList();
+		}
+		if (result.size() > 1) {
+			Collections.sort(result, declarationOrder);
+		}
+		return result;
+	}
 
-			MethodRefactoringRule current = it.next();
-			SymbolType st = new SymbolType(current.getSourceScope());
-			
-			if (st.isCompatible(scopeType)) {
+	/**
+	 * Fast lexical check to discard source files before parsing them. A file
+	 * can only be affected by the rules if it contains, as an identifier, the
+	 * name of some source method (or the type name of a constructor).
+	 * 
+	 * @param source
+	 *            the contents of a source file.
+	 * @return false if no rule can be applied to the source file.
+	 */
+	public boolean isApplicable(CharSequence source) {
+		return sourceMethodsMatcher.matches(source);
+	}
 
-				if (current.getSourceMethodName().equals(method)) {
+	/**
+	 * Returns the names of the source methods of the rules (the type name for
+	 * the constructors).
+	 */
+	public synchronized Set<String> getSourceMethodNames() {
+		return Collections.unmodifiableSet(new HashSet<String>(
+				sourceMethodNames));
+	}
 
-					SymbolType[] argTypes = current.getArgTypes();
+	/**
+	 * Returns the source scopes of the rules of each source method name (the
+	 * type name for the constructors).
+	 */
+	public synchronized Map<String, Set<String>> getSourceMethodScopes() {
+		Map<String, Set<String>> result = new HashMap<String, Set<String>>();
+		for (Map.Entry<String, Set<String>> entry : sourceMethodScopes
+				.entrySet()) {
+			result.put(entry.getKey(), Collections
+					.unmodifiableSet(new HashSet<String>(entry.getValue())));
+		}
+		return Collections.unmodifiableMap(result);
+	}
 
-					boolean compatible = args.length == argTypes.length;
+	private void addSourceMethod(String scope, String methodName) {
+		sourceMethodNames.add(methodName);
+		Set<String> scopes = sourceMethodScopes.get(methodName);
+		if (scopes == null) {
+			scopes = new HashSet<String>();
+			sourceMethodScopes.put(methodName, scopes);
+		}
+		scopes.add(scope);
+	}
 
-					int i = 0;
-					while(compatible && i < args.length){
-						compatible = args[i].isCompatible(argTypes[i]);
-						i++;
-					}
-					
-					if (compatible) {
+	private List<String> getScopeNames(SymbolType scopeType) {
+		Class<?> clazz = null;
+		try {
+			clazz = scopeType.getClazz();
+		} catch (TypeNotFoundException e) {
+			// the scope is only known by its name
+		}
+		if (clazz == null) {
+			return Collections.singletonList(scopeType.getName());
+		}
+		List<String> names = hierarchies.get(clazz);
+		if (names == null) {
+			names = resolveHierarchy(clazz);
+			hierarchies.putIfAbsent(clazz, names);
+		}
+		return names;
+	}
 
-						return current;
+	private static List<String> resolveHierarchy(Class<?> clazz) {
+		Set<Class<?>> closure = new LinkedHashSet<Class<?>>();
+		List<Class<?>> level = new LinkedList<Class<?>>();
+		level.add(clazz);
+		while (!level.isEmpty()) {
+			List<Class<?>> next = new LinkedList<Class<?>>();
+			for (Class<?> current : level) {
+				if (closure.add(current)) {
+					if (current.getSuperclass() != null) {
+						next.add(current.getSuperclass());
 					}
+					next.addAll(Arrays.asList(current.getInterfaces()));
 				}
-
 			}
+			level = next;
 		}
-		return null;
+		if (!clazz.isPrimitive()) {
+			// interfaces do not extend Object, but their instances do
+			closure.add(Object.class);
+		}
+		Set<String> names = new LinkedHashSet<String>();
+		for (Class<?> current : closure) {
+			names.add(current.getName());
+			String canonicalName = current.getCanonicalName();
+			if (canonicalName != null) {
+				names.add(canonicalName);
+			}
+		}
+		return Collections.unmodifiableList(new ArrayList<String>(names));
 	}
 
 	public void putRules(Map<String, String> refactoringRules)
 			throws InvalidRefactoringRuleException {
+		putRules(refactoringRules.entrySet().iterator());
+	}
 
-		String key, value;
-		MethodRefactoringRule rule;
+	/**
+	 * Compiles and adds the rules, consuming the entries one by one. The
+	 * entries are not retained, so they can be streamed from a file. The rules
+	 * are compiled in parallel and, if some of them are not valid, none of
+	 * them is added and all the invalid rules are reported at once.
+	 */
+	public void putRules(Iterator<? extends Entry<String, String>> entries)
+			throws InvalidRefactoringRuleException {
+		putRules(entries, null);
+	}
+
+	/**
+	 * Compiles and adds the rules, reusing the compiled rules of a previous
+	 * dictionary whose definitions have not changed. Thus, when a rules file
+	 * is reloaded, only the new and modified rules are compiled.
+	 * 
+	 * @param entries
+	 *            the rule definitions.
+	 * @param previous
+	 *            the dictionary that is going to be replaced, or
+	 *            <code>null</code>.
+	 */
+	public void putRules(Iterator<? extends Entry<String, String>> entries,
+			RefactoringRulesDictionary previous)
+			throws InvalidRefactoringRuleException {
 
-		int ruleNumber = 0;
-		for (Entry<String, String> entry : refactoringRules.entrySet()) {
+		if (lazyCompilation) {
+			putPendingRules(entries);
+			return;
+		}
+		Map<String, MethodRefactoringRule> reusableRules = Collections
+				.emptyMap();
+		if (previous != null && previous.classLoader == classLoader) {
+			reusableRules = previous.getCompiledRulesByDefinition();
+		}
+		ExecutorService executor = Executors.newFixedThreadPool(
+				COMPILER_THREADS, COMPILER_THREAD_FACTORY);
+		try {
+			List<Future<MethodRefactoringRule>> compilations = new ArrayList<Future<MethodRefactoringRule>>();
+			int ruleNumber = 0;
+			while (entries.hasNext()) {
+				Entry<String, String> entry = entries.next();
+				log.info(ruleNumber+": for "+entry.getKey());
+				ruleNumber++;
+				final String key = entry.getKey();
+				final String value = entry.getValue();
+				final MethodRefactoringRule reusable = reusableRules.get(key);
+				if (reusable != null && value != null
+						&& value.equals(reusable.getTargetDefinition())) {
+					FutureTask<MethodRefactoringRule> reused = new FutureTask<MethodRefactoringRule>(
+							new Callable<MethodRefactoringRule>() {
+								public MethodRefactoringRule call() {
+									return reusable;
+								}
+							});
+					reused.run();
+					compilations.add(reused);
+					continue;
+				}
+				compilations.add(executor
+						.submit(new Callable<MethodRefactoringRule>() {
+							public MethodRefactoringRule call() {
+								return compileRule(key, value);
+							}
+						}));
+			}
+			List<MethodRefactoringRule> compiledRules = new ArrayList<MethodRefactoringRule>(
+					compilations.size());
+			List<InvalidRefactoringRuleException> errors = new LinkedList<InvalidRefactoringRuleException>();
+			for (Future<MethodRefactoringRule> compilation : compilations) {
+				try {
+					compiledRules.add(compilation.get());
+				} catch (ExecutionException e) {
+					if (e.getCause() instanceof Error) {
+						throw (Error) e.getCause();
+					}
+					errors.add((InvalidRefactoringRuleException) e.getCause());
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InvalidRefactoringRuleException(
+							"The compilation of the rules has been interrupted",
+							e);
+				}
+			}
+			if (errors.size() == 1) {
+				throw errors.get(0);
+			}
+			if (!errors.isEmpty()) {
+				throw new InvalidRefactoringRuleException(errors);
+			}
+			putCompiledRules(compiledRules);
+		} finally {
+			executor.shutdownNow();
+		}
+	}
 
-			log.info(ruleNumber+": for "+entry.getKey());
-			ruleNumber++;
-			key = entry.getKey();
-			value = entry.getValue();
+	/**
+	 * Only reads the source scope and method name of each rule, which are
+	 * needed to group the rules and for the lexical filter.
+	 */
+	private synchronized void putPendingRules(
+			Iterator<? extends Entry<String, String>> entries)
+			throws InvalidRefactoringRuleException {
 
-			rule = new MethodRefactoringRule(classLoader);
-		
-			// source scope
-			int parentScopeIndex = key.indexOf(':');
-			if (parentScopeIndex == -1) {
-				throw new InvalidRefactoringRuleException(
+		Map<String, List<Entry<String, String>>> groups = new LinkedHashMap<String, List<Entry<String, String>>>();
+		Map<String, String> newDefinitions = new LinkedHashMap<String, String>();
+		List<InvalidRefactoringRuleException> errors = new LinkedList<InvalidRefactoringRuleException>();
+		while (entries.hasNext()) {
+			Entry<String, String> entry = entries.next();
+			String key = entry.getKey();
+			int scopeIndex = key.indexOf(':');
+			int methodIndex = key.indexOf('(', scopeIndex);
+			if (scopeIndex == -1 || methodIndex == -1) {
+				errors.add(new InvalidRefactoringRuleException(
 						"Invalid rule format. "
-								+ "The scope cannot be parsed for the rule:<"
-								+ key + " => " + value
-								+ ">. Please verify the documentation");
+								+ "The method cannot be parsed for the rule: <"
+								+ key + " => " + entry.getValue()
+								+ ">. Please verify the documentation"));
+			} else {
+				String scope = key.substring(0, scopeIndex);
+				List<Entry<String, String>> group = groups.get(scope);
+				if (group == null) {
+					group = new LinkedList<Entry<String, String>>();
+					groups.put(scope, group);
+				}
+				group.add(new SimpleImmutableEntry<String, String>(key, entry
+						.getValue()));
+				newDefinitions.put(key, entry.getValue());
 			}
-			String scope = key.substring(0, parentScopeIndex);
+		}
+		if (errors.size() == 1) {
+			throw errors.get(0);
+		}
+		if (!errors.isEmpty()) {
+			throw new InvalidRefactoringRuleException(errors);
+		}
+		for (Map.Entry<String, List<Entry<String, String>>> group : groups
+				.entrySet()) {
+			List<Entry<String, String>> pending = pendingRules.get(group
+					.getKey());
+			if (pending == null) {
+				pendingRules.put(group.getKey(), group.getValue());
+			} else {
+				pending.addAll(group.getValue());
+			}
+		}
+		definitions.putAll(newDefinitions);
+		for (String definition : newDefinitions.keySet()) {
+			addPosition(definition);
+			int scopeIndex = definition.indexOf(':');
+			addSourceMethod(definition.substring(0, scopeIndex), definition
+					.substring(scopeIndex + 1,
+							definition.indexOf('(', scopeIndex)));
+		}
+		sourceMethodsMatcher = new KeywordMatcher(sourceMethodNames);
+	}
 
-			rule.setSourceScope(scope);
+	/**
+	 * Compiles the pending rules of a source scope, if any. If some rules are
+	 * invalid, the valid ones are published anyway and the error is only
+	 * thrown this time.
+	 * 
+	 * @return the compiled rules of the scope or null if there are no rules.
+	 */
+	private synchronized Map<RuleKey, List<MethodRefactoringRule>> compileScope(
+			String scope) throws InvalidRefactoringRuleException {
+		Map<RuleKey, List<MethodRefactoringRule>> scopeRules = refactoringRules
+				.get(scope);
+		List<Entry<String, String>> pending = pendingRules.get(scope);
+		if (scopeRules != null || pending == null) {
+			return scopeRules;
+		}
+		List<MethodRefactoringRule> compiledRules = new LinkedList<MethodRefactoringRule>();
+		List<InvalidRefactoringRuleException> errors = new LinkedList<InvalidRefactoringRuleException>();
+		for (Entry<String, String> entry : pending) {
+			try {
+				compiledRules.add(compileRule(entry.getKey(), entry.getValue()));
+			} catch (InvalidRefactoringRuleException e) {
+				errors.add(e);
+			}
+		}
+		log.debug("Compiled " + compiledRules.size() + " rules for " + scope);
+		// the scope rules are only published once they are complete
+		scopeRules = new HashMap<RuleKey, List<MethodRefactoringRule>>();
+		for (MethodRefactoringRule rule : compiledRules) {
+			addToBucket(scopeRules, rule);
+			rules.add(rule);
+		}
+		pendingRules.remove(scope);
+		refactoringRules.put(scope, scopeRules);
+		if (!errors.isEmpty()) {
+			InvalidRefactoringRuleException error = errors.size() == 1 ? errors
+					.get(0) : new InvalidRefactoringRuleException(errors);
+			invalidScopes.put(scope, error);
+			throw error;
+		}
+		return scopeRules;
+	}
 
-			int scopeIndex = value.indexOf(':');
-			if (scopeIndex == -1) {
-				throw new InvalidRefactoringRuleException(
-						"Invalid rule format. "
-								+ "The scope cannot be parsed for the rule:<"
-								+ key + " => " + value
-								+ ">. Please verify the documentation");
+	private MethodRefactoringRule compileRule(String key, String value)
+			throws InvalidRefactoringRuleException {
+		try {
+			return parseRule(key, value);
+		} catch (InvalidRefactoringRuleException e) {
+			throw e;
+		} catch (RuntimeException e) {
+			throw new InvalidRefactoringRuleException("Invalid rule format. "
+					+ "The rule cannot be compiled:<" + key + " => " + value
+					+ ">. Please verify the documentation", e);
+		}
+	}
+
+	/**
+	 * Adds rules that are already compiled, e.g. those of a rule pack.
+	 */
+	synchronized void putCompiledRules(List<MethodRefactoringRule> compiledRules) {
+		for (MethodRefactoringRule rule : compiledRules) {
+			addRule(rule);
+		}
+		sourceMethodsMatcher = new KeywordMatcher(sourceMethodNames);
+	}
+
+	/**
+	 * Returns the compiled rules. The pending rules are compiled first, so
+	 * with lazy compilation the rules are grouped by source scope.
+	 * 
+	 * @throws InvalidRefactoringRuleException
+	 *             if some scope has invalid rules, even if they were already
+	 *             reported by a lookup.
+	 */
+	synchronized List<MethodRefactoringRule> getCompiledRules()
+			throws InvalidRefactoringRuleException {
+		for (String scope : new ArrayList<String>(pendingRules.keySet())) {
+			try {
+				compileScope(scope);
+			} catch (InvalidRefactoringRuleException e) {
+				// recorded in invalidScopes
 			}
-			scope = value.substring(0, scopeIndex);
+		}
+		if (invalidScopes.size() == 1) {
+			throw invalidScopes.values().iterator().next();
+		}
+		if (!invalidScopes.isEmpty()) {
+			throw new InvalidRefactoringRuleException(
+					new ArrayList<InvalidRefactoringRuleException>(
+							invalidScopes.values()));
+		}
+		return Collections
+				.unmodifiableList(new ArrayList<MethodRefactoringRule>(rules));
+	}
+
+	private synchronized Map<String, MethodRefactoringRule> getCompiledRulesByDefinition() {
+		Map<String, MethodRefactoringRule> result = new HashMap<String, MethodRefactoringRule>();
+		for (MethodRefactoringRule rule : rules) {
+			result.put(rule.getSourceDefinition(), rule);
+		}
+		return result;
+	}
+
+	/**
+	 * Returns the definitions of the rules, in the order they were added.
+	 */
+	public Map<String, String> getRules() {
+		return Collections.unmodifiableMap(definitions);
+	}
+
+	private MethodRefactoringRule parseRule(String key, String value)
+			throws InvalidRefactoringRuleException {
+
+		MethodRefactoringRule rule = new MethodRefactoringRule(classLoader);
+		rule.setDefinition(key, value);
+
+		// source scope
+		int parentScopeIndex = key.indexOf(':');
+		if (parentScopeIndex == -1) {
+			throw new InvalidRefactoringRuleException(
+					"Invalid rule format. "
+							+ "The scope cannot be parsed for the rule:<"
+							+ key + " => " + value
+							+ ">. Please verify the documentation");
+		}
+		String scope = key.substring(0, parentScopeIndex);
+
+		rule.setSourceScope(scope);
+
+		int scopeIndex = value.indexOf(':');
+		if (scopeIndex == -1) {
+			throw new InvalidRefactoringRuleException(
+					"Invalid rule format. "
+							+ "The scope cannot be parsed for the rule:<"
+							+ key + " => " + value
+							+ ">. Please verify the documentation");
+		}
+		scope = value.substring(0, scopeIndex);
+		rule.setScope(scope);
+
+		// scope
+		int implicitIndex = scope.indexOf('[');
+		if (implicitIndex != -1) {
+
+			String implicitExpression = scope.substring(implicitIndex + 1,
+					scope.indexOf(']'));
+
+			rule.setImplicitExpression(implicitExpression);
+			scope = value.substring(0, implicitIndex);
 			rule.setScope(scope);
+		}
 
-			// scope
-			int implicitIndex = scope.indexOf('[');
-			if (implicitIndex != -1) {
+		int methodIndex = key.indexOf('(', parentScopeIndex);
+		if (methodIndex == -1) {
 
-				String implicitExpression = scope.substring(implicitIndex + 1,
-						scope.indexOf(']'));
+			throw new InvalidRefactoringRuleException(
+					"Invalid rule format. "
+							+ "The method cannot be parsed for the rule: <"
+							+ key + " => " + value
+							+ ">. Please verify the documentation");
+		}
+		String method = key.substring(parentScopeIndex + 1, methodIndex);
+		rule.setSourceMethodName(method);
+
+		// method
+		int parentIndex = value.indexOf('(', scopeIndex);
+		if (parentIndex == -1) {
+
+			throw new InvalidRefactoringRuleException(
+					"Invalid rule format. "
+							+ "The method cannot be parsed for the rule: <"
+							+ key + " => " + value
+							+ ">. Please verify the documentation");
+		}
+		method = value.substring(scopeIndex + 1, parentIndex);
+		rule.setMethodName(method);
+
+		// result
+		int resultIndex = value.indexOf(':', parentIndex);
+		if (resultIndex > parentIndex) {
+			String resultExpr = value.substring(resultIndex + 1);
+			rule.setResultExpression(resultExpr);
+		} else {
+			resultIndex = value.length();
+		}
 
-				rule.setImplicitExpression(implicitExpression);
-				scope = value.substring(0, implicitIndex);
-				rule.setScope(scope);
-			}
+		// param expressions
+		String args = value.substring(parentIndex + 1, resultIndex - 1);
+		if (args.trim().length() > 0) {
+			String[] expressions = args.split(";");
+			rule.setExpressions(Arrays.asList(expressions));
+		}
 
-			int methodIndex = key.indexOf('(', parentScopeIndex);
-			if (methodIndex == -1) {
+		scopeIndex = key.indexOf(':');
 
-				throw new InvalidRefactoringRuleException(
-						"Invalid rule format. "
-								+ "The method cannot be parsed for the rule: <"
-								+ key + " => " + value
-								+ ">. Please verify the documentation");
-			}
-			String method = key.substring(parentScopeIndex + 1, methodIndex);
-			rule.setSourceMethodName(method);
+		if (scopeIndex == -1) {
+			throw new InvalidRefactoringRuleException(
+					"Invalid rule format. "
+							+ "The scope cannot be parsed for the rule:<"
+							+ key + " => " + value
+							+ ">. Please verify the documentation");
+		}
 
-			// method
-			int parentIndex = value.indexOf('(', scopeIndex);
-			if (parentIndex == -1) {
+		// variables
+		int startIndex = key.indexOf('(', scopeIndex);
 
-				throw new InvalidRefactoringRuleException(
-						"Invalid rule format. "
-								+ "The method cannot be parsed for the rule: <"
-								+ key + " => " + value
-								+ ">. Please verify the documentation");
-			}
-			method = value.substring(scopeIndex + 1, parentIndex);
-			rule.setMethodName(method);
+		if (startIndex == -1) {
+			throw new InvalidRefactoringRuleException(
+					"Invalid rule format. "
+							+ "The args cannot be parsed for the rule:<"
+							+ key + " => " + value
+							+ ">. Please verify the documentation");
+		}
 
-			// result
-			int resultIndex = value.indexOf(':', parentIndex);
-			if (resultIndex > parentIndex) {
-				String resultExpr = value.substring(resultIndex + 1);
-				rule.setResultExpression(resultExpr);
-			} else {
-				resultIndex = value.length();
+		String argExpressions = key.substring(startIndex + 1,
+				key.length() - 1);
+		if (!argExpressions.isEmpty()) {
+			String[] argExpr = argExpressions.split(";");
+			String[] variables = new String[argExpr.length];
+			List<String> argTypes = new LinkedList<String>();
+			for (int i = 0; i < variables.length; i++) {
+				int varIndex = argExpr[i].lastIndexOf(" ");
+				if (varIndex == -1) {
+					throw new InvalidRefactoringRuleException(
+							"Invalid rule format. "
+									+ "The variables cannot be parsed for the rule:<"
+									+ key + " => " + value
+									+ ">. Please verify the documentation");
+				}
+				String type = argExpr[i].substring(0, varIndex).trim();
+				argTypes.add(type);
+				variables[i] = argExpr[i].substring(varIndex + 1).trim();
 			}
+			rule.setArgTypes(argTypes);
+			rule.setVariables(Arrays.asList(variables));
+		}
+		
+		rule.compile();
+		return rule;
+	}
 
-			// param expressions
-			String args = value.substring(parentIndex + 1, resultIndex - 1);
-			if (args.trim().length() > 0) {
-				String[] expressions = args.split(";");
-				rule.setExpressions(Arrays.asList(expressions));
-			}
+	private void addRule(MethodRefactoringRule rule) {
+		Map<RuleKey, List<MethodRefactoringRule>> scopeRules = refactoringRules
+				.get(rule.getSourceScope());
+		if (scopeRules == null) {
+			scopeRules = new HashMap<RuleKey, List<MethodRefactoringRule>>();
+			refactoringRules.put(rule.getSourceScope(), scopeRules);
+		}
+		addToBucket(scopeRules, rule);
+		rules.add(rule);
+		definitions.put(rule.getSourceDefinition(), rule.getTargetDefinition());
+		addPosition(rule.getSourceDefinition());
+		addSourceMethod(rule.getSourceScope(), rule.getSourceMethodName());
+	}
 
-			scopeIndex = key.indexOf(':');
+	private void addPosition(String definition) {
+		positions.putIfAbsent(definition, positions.size());
+	}
 
-			if (scopeIndex == -1) {
-				throw new InvalidRefactoringRuleException(
-						"Invalid rule format. "
-								+ "The scope cannot be parsed for the rule:<"
-								+ key + " => " + value
-								+ ">. Please verify the documentation");
-			}
+	private static void addToBucket(
+			Map<RuleKey, List<MethodRefactoringRule>> scopeRules,
+			MethodRefactoringRule rule) {
+		RuleKey key = new RuleKey(rule.getSourceMethodName(),
+				rule.getArgTypes().length);
+		List<MethodRefactoringRule> bucket = scopeRules.get(key);
+		if (bucket == null) {
+			bucket = new LinkedList<MethodRefactoringRule>();
+			scopeRules.put(key, bucket);
+		}
+		bucket.add(rule);
+	}
 
-			// variables
-			int startIndex = key.indexOf('(', scopeIndex);
+	private static final class RuleKey {
 
-			if (startIndex == -1) {
-				throw new InvalidRefactoringRuleException(
-						"Invalid rule format. "
-								+ "The args cannot be parsed for the rule:<"
-								+ key + " => " + value
-								+ ">. Please verify the documentation");
-			}
-
-			String argExpressions = key.substring(startIndex + 1,
-					key.length() - 1);
-			if (!argExpressions.isEmpty()) {
-				String[] argExpr = argExpressions.split(";");
-				String[] variables = new String[argExpr.length];
-				List<String> argTypes = new LinkedList<String>();
-				for (int i = 0; i < variables.length; i++) {
-					int varIndex = argExpr[i].lastIndexOf(" ");
-					if (varIndex == -1) {
-						throw new InvalidRefactoringRuleException(
-								"Invalid rule format. "
-										+ "The variables cannot be parsed for the rule:<"
-										+ key + " => " + value
-										+ ">. Please verify the documentation");
-					}
-					String type = argExpr[i].substring(0, varIndex).trim();
-					argTypes.add(type);
-					variables[i] = argExpr[i].substring(varIndex + 1).trim();
-				}
-				rule.setArgTypes(argTypes);
-				rule.setVariables(Arrays.asList(variables));
+		private final String method;
+
+		private final int arity;
+
+		public RuleKey(String method, int arity) {
+			this.method = method;
+			this.arity = arity;
+		}
+
+		@Override
+		public int hashCode() {
+			return 31 * method.hashCode() + arity;
+		}
+
+		@Override
+		public boolean equals(Object o) {
+			if (this == o) {
+				return true;
+			}
+			if (!(o instanceof RuleKey)) {
+				return false;
 			}
-			
-			this.refactoringRules.add(rule);
+			RuleKey other = (RuleKey) o;
+			return arity == other.arity && method.equals(other.method);
 		}
 	}
 }
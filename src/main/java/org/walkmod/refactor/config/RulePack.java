@@ -0,0 +1,385 @@
+/* 
+  Copyright (C) 2013 Raquel Pau and Albert Coroleu.
+ 
+ Walkmod is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+ 
+ Walkmod is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+ 
+ You should have received a copy of the GNU Lesser General Public License
+ along with Walkmod.  If not, see <http://www.gnu.org/licenses/>.*/
+package org.walkmod.refactor.config;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.walkmod.refactor.exceptions.InvalidRefactoringRuleException;
+
+/**
+ * Validated set of method rules and class renamings. The pack is written
+ * once, offline, with {@link #main} and loaded by mapping the file into
+ * memory, so the processes that load the same pack share its pages and skip
+ * the parsing of the JSON rules.
+ * 
+ * The pack stores the text of the rules, split into their fields, not the
+ * compiled rules: the scopes and the argument types are classes of the
+ * classpath of each execution. Thus, {@link #getMethodRules(ClassLoader)}
+ * decodes all the strings of the method rules and compiles every rule again
+ * with <code>compile(false)</code>, which resolves its types but defers the
+ * parsing of its templates until the rule is applied.
+ * 
+ * The format is big-endian: a header with the magic number, the format version
+ * and the sizes of each section, a table with the distinct strings (length and
+ * UTF-8 bytes) and the records of the rules, which only contain indexes of the
+ * string table (-1 for <code>null</code>). The strings are only decoded when
+ * a section is read.
+ */
+public class RulePack {
+
+   public static final int MAGIC = 0x57525031;
+
+   public static final int FORMAT_VERSION = 2;
+
+   private static final int NULL = -1;
+
+   private final File file;
+
+   private final ByteBuffer buffer;
+
+   private final int[] stringOffsets;
+
+   private final String[] strings;
+
+   private final int methodRulesCount;
+
+   private final int classRulesCount;
+
+   private final int methodRulesOffset;
+
+   private RulePack(File file, ByteBuffer buffer) throws IOException {
+      this.file = file;
+      this.buffer = buffer;
+      try {
+         if (buffer.getInt() != MAGIC) {
+            throw new IOException("The file [" + file + "] is not a rule pack");
+         }
+         int version = buffer.getInt();
+         if (version != FORMAT_VERSION) {
+            throw new IOException("The rule pack [" + file + "] has the unsupported version " + version);
+         }
+         int stringsCount = buffer.getInt();
+         methodRulesCount = buffer.getInt();
+         classRulesCount = buffer.getInt();
+         stringOffsets = new int[stringsCount];
+         strings = new String[stringsCount];
+         for (int i = 0; i < stringsCount; i++) {
+            stringOffsets[i] = buffer.position();
+            int length = buffer.getInt();
+            buffer.position(buffer.position() + length);
+         }
+         methodRulesOffset = buffer.position();
+      } catch (BufferUnderflowException e) {
+         throw new IOException("The rule pack [" + file + "] is truncated");
+      } catch (IllegalArgumentException e) {
+         throw new IOException("The rule pack [" + file + "] is truncated");
+      }
+   }
+
+   /**
+    * Maps a rule pack into memory.
+    * 
+    * @param file
+    *           the rule pack.
+    * @return the loaded rule pack.
+    * @throws IOException
+    *            if the file cannot be read or it is not a valid rule pack.
+    */
+   public static RulePack load(File file) throws IOException {
+      RandomAccessFile raf = new RandomAccessFile(file, "r");
+      try {
+         FileChannel channel = raf.getChannel();
+         // the mapping remains valid once the channel is closed
+         MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+         return new RulePack(file, buffer);
+      } finally {
+         raf.close();
+      }
+   }
+
+   public File getFile() {
+      return file;
+   }
+
+   public int getMethodRulesCount() {
+      return methodRulesCount;
+   }
+
+   public int getClassRulesCount() {
+      return classRulesCount;
+   }
+
+   /**
+    * Builds the dictionary of the method rules of the pack, decoding and
+    * compiling each rule. The rules were validated when the pack was written,
+    * so their template expressions are parsed the first time that each rule
+    * is applied.
+    */
+   public RefactoringRulesDictionary getMethodRules(ClassLoader classLoader) {
+      ByteBuffer in = buffer.duplicate();
+      in.position(methodRulesOffset);
+      List<MethodRefactoringRule> rules = new ArrayList<MethodRefactoringRule>(methodRulesCount);
+      for (int i = 0; i < methodRulesCount; i++) {
+         MethodRefactoringRule rule = new MethodRefactoringRule(classLoader);
+         rule.setDefinition(readString(in), readString(in));
+         rule.setSourceScope(readString(in));
+         rule.setSourceMethodName(readString(in));
+         rule.setScope(readString(in));
+         rule.setMethodName(readString(in));
+         rule.setImplicitExpression(readString(in));
+         String resultExpression = readString(in);
+         if (in.get() != 0) {
+            resultExpression = "void" + (resultExpression == null ? "" : resultExpression);
+         }
+         rule.setResultExpression(resultExpression);
+         int args = in.getInt();
+         if (args > 0) {
+            List<String> argTypes = new ArrayList<String>(args);
+            List<String> variables = new ArrayList<String>(args);
+            for (int j = 0; j < args; j++) {
+               argTypes.add(readString(in));
+               variables.add(readString(in));
+            }
+            rule.setArgTypes(argTypes);
+            rule.setVariables(variables);
+         }
+         int expressions = in.getInt();
+         if (expressions > 0) {
+            List<String> templates = new ArrayList<String>(expressions);
+            for (int j = 0; j < expressions; j++) {
+               templates.add(readString(in));
+            }
+            rule.setExpressions(templates);
+         }
+         rule.compile(false);
+         rules.add(rule);
+      }
+      RefactoringRulesDictionary dictionary = new RefactoringRulesDictionary(classLoader);
+      dictionary.putCompiledRules(rules);
+      return dictionary;
+   }
+
+   /**
+    * Returns the class renamings of the pack, in the order they were written.
+    */
+   public Map<String, String> getClassRules() {
+      ByteBuffer in = buffer.duplicate();
+      in.position(methodRulesOffset);
+      skipMethodRules(in);
+      return Collections.unmodifiableMap(readPairs(in, classRulesCount));
+   }
+
+   private void skipMethodRules(ByteBuffer in) {
+      for (int i = 0; i < methodRulesCount; i++) {
+         // definitions, scopes, method names, implicit and result expressions
+         in.position(in.position() + 8 * 4 + 1);
+         int args = in.getInt();
+         in.position(in.position() + args * 2 * 4);
+         int expressions = in.getInt();
+         in.position(in.position() + expressions * 4);
+      }
+   }
+
+   private Map<String, String> readPairs(ByteBuffer in, int count) {
+      Map<String, String> result = new LinkedHashMap<String, String>();
+      for (int i = 0; i < count; i++) {
+         String key = readString(in);
+         result.put(key, readString(in));
+      }
+      return result;
+   }
+
+   private String readString(ByteBuffer in) {
+      int index = in.getInt();
+      if (index == NULL) {
+         return null;
+      }
+      String result = strings[index];
+      if (result == null) {
+         // decoding it twice in a race is harmless
+         ByteBuffer view = buffer.duplicate();
+         view.position(stringOffsets[index]);
+         byte[] bytes = new byte[view.getInt()];
+         view.get(bytes);
+         result = decode(bytes);
+         strings[index] = result;
+      }
+      return result;
+   }
+
+   private static String decode(byte[] bytes) {
+      try {
+         return new String(bytes, "UTF-8");
+      } catch (UnsupportedEncodingException e) {
+         throw new IllegalStateException(e);
+      }
+   }
+
+   /**
+    * Compiles the rules and writes them as a rule pack. The rules are
+    * validated as if they were loaded by the visitors, so an invalid rule is
+    * reported when the pack is written instead of when it is used.
+    * 
+    * @param file
+    *           the rule pack to write.
+    * @param methodRules
+    *           method rules, or <code>null</code>.
+    * @param classRules
+    *           class renamings, or <code>null</code>.
+    */
+   public static void write(File file, Map<String, String> methodRules, Map<String, String> classRules)
+         throws IOException, InvalidRefactoringRuleException {
+      RefactoringRulesDictionary dictionary = new RefactoringRulesDictionary(null);
+      if (methodRules != null) {
+         dictionary.putRules(methodRules);
+      }
+      if (classRules == null) {
+         classRules = Collections.emptyMap();
+      }
+
+      StringTable table = new StringTable();
+      ByteArrayOutputStream records = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(records);
+      List<MethodRefactoringRule> rules = dictionary.getCompiledRules();
+      for (MethodRefactoringRule rule : rules) {
+         out.writeInt(table.indexOf(rule.getSourceDefinition()));
+         out.writeInt(table.indexOf(rule.getTargetDefinition()));
+         out.writeInt(table.indexOf(rule.getSourceScope()));
+         out.writeInt(table.indexOf(rule.getSourceMethodName()));
+         out.writeInt(table.indexOf(rule.getScope()));
+         out.writeInt(table.indexOf(rule.getMethodName()));
+         out.writeInt(table.indexOf(rule.getImplicitExpression()));
+         out.writeInt(table.indexOf(rule.getResultExpression()));
+         out.writeByte(rule.isVoidResult() ? 1 : 0);
+         List<String> argTypes = rule.getArgTypeNames();
+         List<String> variables = rule.getVariables();
+         out.writeInt(argTypes.size());
+         for (int i = 0; i < argTypes.size(); i++) {
+            out.writeInt(table.indexOf(argTypes.get(i)));
+            out.writeInt(table.indexOf(variables.get(i)));
+         }
+         List<String> expressions = rule.getExpressions();
+         out.writeInt(expressions.size());
+         for (String expression : expressions) {
+            out.writeInt(table.indexOf(expression));
+         }
+      }
+      writePairs(out, table, classRules);
+      out.flush();
+
+      DataOutputStream pack = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+      try {
+         pack.writeInt(MAGIC);
+         pack.writeInt(FORMAT_VERSION);
+         pack.writeInt(table.strings.size());
+         pack.writeInt(rules.size());
+         pack.writeInt(classRules.size());
+         for (String string : table.strings.keySet()) {
+            byte[] bytes = string.getBytes("UTF-8");
+            pack.writeInt(bytes.length);
+            pack.write(bytes);
+         }
+         records.writeTo(pack);
+      } finally {
+         pack.close();
+      }
+   }
+
+   private static void writePairs(DataOutputStream out, StringTable table, Map<String, String> pairs)
+         throws IOException {
+      for (Map.Entry<String, String> entry : pairs.entrySet()) {
+         out.writeInt(table.indexOf(entry.getKey()));
+         out.writeInt(table.indexOf(entry.getValue()));
+      }
+   }
+
+   private static Map<String, String> readRules(String configFile) throws IOException {
+      Map<String, String> result = new LinkedHashMap<String, String>();
+      RulesFileReader reader = new RulesFileReader(new File(configFile));
+      try {
+         while (reader.hasNext()) {
+            Map.Entry<String, String> entry = reader.next();
+            result.put(entry.getKey(), entry.getValue());
+         }
+      } finally {
+         reader.close();
+      }
+      return result;
+   }
+
+   /**
+    * Writes a rule pack from the JSON rule files.
+    */
+   public static void main(String[] args) throws Exception {
+      Map<String, String> methodRules = null;
+      Map<String, String> classRules = null;
+      File out = null;
+      int i = 0;
+      while (i < args.length - 1 && args[i].startsWith("-")) {
+         String option = args[i];
+         String value = args[i + 1];
+         if ("-methods".equals(option)) {
+            methodRules = readRules(value);
+         } else if ("-classes".equals(option)) {
+            classRules = readRules(value);
+         } else if ("-out".equals(option)) {
+            out = new File(value);
+         } else {
+            break;
+         }
+         i += 2;
+      }
+      if (out == null || i != args.length) {
+         System.err.println("Usage: " + RulePack.class.getName()
+               + " [-methods <rules.json>] [-classes <rules.json>] -out <rules.pack>");
+         return;
+      }
+      write(out, methodRules, classRules);
+   }
+
+   private static final class StringTable {
+
+      private final Map<String, Integer> strings = new LinkedHashMap<String, Integer>();
+
+      public int indexOf(String string) {
+         if (string == null) {
+            return NULL;
+         }
+         Integer index = strings.get(string);
+         if (index == null) {
+            index = strings.size();
+            strings.put(string, index);
+         }
+         return index;
+      }
+   }
+}
@@ -0,0 +1,101 @@
+/* 
+  Copyright (C) 2013 Raquel Pau and Albert Coroleu.
+ 
+ Walkmod is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+ 
+ Walkmod is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+ 
+ You should have received a copy of the GNU Lesser General Public License
+ along with Walkmod.  If not, see <http://www.gnu.org/licenses/>.*/
+package org.walkmod.refactor.config;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.util.AbstractMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.zip.GZIPInputStream;
+
+import com.alibaba.fastjson.JSONReader;
+
+/**
+ * Reads the entries of a JSON rules file (a plain object whose values are the
+ * rules of each key) one by one, without loading the whole file in memory.
+ * Gzip compressed files are detected by their header.
+ */
+public class RulesFileReader implements Iterator<Map.Entry<String, String>>, Closeable {
+
+   private static final int GZIP_MAGIC = 0x8b1f;
+
+   private final JSONReader reader;
+
+   private boolean finished = false;
+
+   public RulesFileReader(File file) throws IOException {
+      this(new FileInputStream(file));
+   }
+
+   public RulesFileReader(InputStream in) throws IOException {
+      InputStream input = new BufferedInputStream(in);
+      try {
+         input.mark(2);
+         int magic = input.read() | (input.read() << 8);
+         input.reset();
+         if (magic == GZIP_MAGIC) {
+            input = new GZIPInputStream(input);
+         }
+         reader = new JSONReader(new InputStreamReader(input, "UTF-8"));
+         reader.startObject();
+      } catch (IOException e) {
+         input.close();
+         throw e;
+      } catch (RuntimeException e) {
+         input.close();
+         throw e;
+      }
+   }
+
+   @Override
+   public boolean hasNext() {
+      if (finished) {
+         return false;
+      }
+      if (!reader.hasNext()) {
+         reader.endObject();
+         finished = true;
+      }
+      return !finished;
+   }
+
+   @Override
+   public Map.Entry<String, String> next() {
+      if (!hasNext()) {
+         throw new NoSuchElementException();
+      }
+      String key = reader.readString();
+      Object value = reader.readObject();
+      return new AbstractMap.SimpleImmutableEntry<String, String>(key, value == null ? null : value.toString());
+   }
+
+   @Override
+   public void remove() {
+      throw new UnsupportedOperationException();
+   }
+
+   @Override
+   public void close() {
+      reader.close();
+   }
+}
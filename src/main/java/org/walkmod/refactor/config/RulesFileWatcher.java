@@ -0,0 +1,151 @@
+/* 
+  Copyright (C) 2013 Raquel Pau and Albert Coroleu.
+ 
+ Walkmod is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+ 
+ Walkmod is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+ 
+ You should have received a copy of the GNU Lesser General Public License
+ along with Walkmod.  If not, see <http://www.gnu.org/licenses/>.*/
+package org.walkmod.refactor.config;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.apache.log4j.Logger;
+
+/**
+ * Polls a set of rule files and notifies their listeners when a file is
+ * modified, so that a long-running process can reload its rules. A file is
+ * considered modified when its last modification time or its length changes.
+ * The listeners are notified from a single daemon thread.
+ */
+public class RulesFileWatcher {
+
+   private static final Logger LOG = Logger.getLogger(RulesFileWatcher.class);
+
+   private final long interval;
+
+   private final Map<File, WatchedFile> files = new LinkedHashMap<File, WatchedFile>();
+
+   private ScheduledExecutorService executor;
+
+   /**
+    * @param interval
+    *           milliseconds between two checks of the files.
+    */
+   public RulesFileWatcher(long interval) {
+      if (interval <= 0) {
+         throw new IllegalArgumentException("The interval must be positive");
+      }
+      this.interval = interval;
+   }
+
+   public long getInterval() {
+      return interval;
+   }
+
+   /**
+    * Starts watching a file, replacing its previous listener if any. The
+    * current state of the file is not notified.
+    */
+   public synchronized void watch(File file, Listener listener) {
+      files.put(file.getAbsoluteFile(), new WatchedFile(file, listener));
+      if (executor == null) {
+         executor = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+
+            public Thread newThread(Runnable runnable) {
+               Thread thread = new Thread(runnable, "rules-file-watcher");
+               thread.setDaemon(true);
+               return thread;
+            }
+         });
+         executor.scheduleWithFixedDelay(new Runnable() {
+
+            public void run() {
+               poll();
+            }
+         }, interval, interval, TimeUnit.MILLISECONDS);
+      }
+   }
+
+   /**
+    * Stops watching all the files.
+    */
+   public synchronized void close() {
+      files.clear();
+      if (executor != null) {
+         executor.shutdownNow();
+         executor = null;
+      }
+   }
+
+   /**
+    * Checks the files once and notifies the listeners of the modified ones.
+    */
+   public void poll() {
+      WatchedFile[] watched;
+      synchronized (this) {
+         watched = files.values().toArray(new WatchedFile[files.size()]);
+      }
+      for (WatchedFile file : watched) {
+         if (file.isModified()) {
+            LOG.info("The rules file [" + file.file + "] has been modified");
+            try {
+               file.listener.changed(file.file);
+            } catch (Exception e) {
+               LOG.error("The rules file [" + file.file + "] cannot be reloaded", e);
+            }
+         }
+      }
+   }
+
+   /**
+    * Receives the modifications of a watched file.
+    */
+   public interface Listener {
+
+      void changed(File file) throws Exception;
+   }
+
+   private static final class WatchedFile {
+
+      private final File file;
+
+      private final Listener listener;
+
+      private long lastModified;
+
+      private long length;
+
+      public WatchedFile(File file, Listener listener) {
+         this.file = file;
+         this.listener = listener;
+         this.lastModified = file.lastModified();
+         this.length = file.length();
+      }
+
+      public boolean isModified() {
+         long currentLastModified = file.lastModified();
+         long currentLength = file.length();
+         // a file that is being replaced does not exist for a while
+         if (!file.exists() || (currentLastModified == lastModified && currentLength == length)) {
+            return false;
+         }
+         lastModified = currentLastModified;
+         length = currentLength;
+         return true;
+      }
+   }
+}
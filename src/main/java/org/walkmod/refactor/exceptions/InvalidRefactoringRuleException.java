@@ -15,6 +15,10 @@
  along with Walkmod.  If not, see <http://www.gnu.org/licenses/>.*/
 package org.walkmod.refactor.exceptions;
 
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
 import org.walkmod.exceptions.WalkModException;
 
 public class InvalidRefactoringRuleException extends WalkModException {
@@ -24,6 +28,9 @@ public class InvalidRefactoringRuleException extends WalkModException {
 	 */
 	private static final long serialVersionUID = 9001388591915734947L;
 
+	private List<InvalidRefactoringRuleException> errors = Collections
+			.emptyList();
+
 	public InvalidRefactoringRuleException() {
 		super();
 	}
@@ -39,4 +46,36 @@ public class InvalidRefactoringRuleException extends WalkModException {
 	public InvalidRefactoringRuleException(Throwable cause) {
 		super(cause);
 	}
+
+	/**
+	 * Reports several invalid rules at once.
+	 * 
+	 * @param errors
+	 *            the error of each invalid rule.
+	 */
+	public InvalidRefactoringRuleException(
+			List<InvalidRefactoringRuleException> errors) {
+		super(getMessage(errors));
+		this.errors = Collections
+				.unmodifiableList(new ArrayList<InvalidRefactoringRuleException>(
+						errors));
+	}
+
+	private static String getMessage(
+			List<InvalidRefactoringRuleException> errors) {
+		StringBuilder message = new StringBuilder();
+		message.append(errors.size()).append(" invalid refactoring rules:");
+		for (InvalidRefactoringRuleException error : errors) {
+			message.append("\n - ").append(error.getMessage());
+		}
+		return message.toString();
+	}
+
+	/**
+	 * Returns the errors of each invalid rule, if this exception reports
+	 * several rules.
+	 */
+	public List<InvalidRefactoringRuleException> getErrors() {
+		return errors;
+	}
 }
@@ -18,6 +18,8 @@ package org.walkmod.refactor.visitors;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.walkmod.javalang.ast.Node;
 import org.walkmod.javalang.ast.TypeParameter;
@@ -38,17 +40,15 @@ public class ASTTypeNameResolver extends
 		GenericVisitorAdapter<SymbolType, List<TypeParameter>> implements
 		SymbolTypeResolver<Type> {
 
-	private static ASTTypeNameResolver instance = null;
+	private static final ASTTypeNameResolver instance = new ASTTypeNameResolver();
 
+	private volatile ResolvedNames resolvedNames = new ResolvedNames(null);
 
 	private ASTTypeNameResolver() {
 
 	}
 
 	public static ASTTypeNameResolver getInstance() {
-		if (instance == null) {
-			instance = new ASTTypeNameResolver();
-		}
 		return instance;
 	}
 
@@ -137,13 +137,7 @@ public class ASTTypeNameResolver extends
 			String fullName = scopeName + name;
 
 			result = new SymbolType();
-			try {
-				TypesLoaderVisitor.getClassLoader().loadClass(fullName);
-				result.setName(fullName);
-			} catch (ClassNotFoundException e) {
-				
-				result.setName(innerClassName);
-			}
+			result.setName(resolve(fullName, innerClassName));
 
 		}
 
@@ -168,6 +162,32 @@ public class ASTTypeNameResolver extends
 		return result;
 	}
 
+	/**
+	 * Returns the full name if it is a loadable class, or the inner class name
+	 * otherwise. The outcome, positive or negative, is remembered for the
+	 * current class loader of the semantic analysis, so repeated names are
+	 * resolved without calling the class loader.
+	 */
+	private String resolve(String fullName, String innerClassName) {
+		ClassLoader classLoader = TypesLoaderVisitor.getClassLoader();
+		ResolvedNames cache = resolvedNames;
+		if (cache.classLoader != classLoader) {
+			cache = new ResolvedNames(classLoader);
+			resolvedNames = cache;
+		}
+		String name = cache.names.get(fullName);
+		if (name == null) {
+			try {
+				classLoader.loadClass(fullName);
+				name = fullName;
+			} catch (ClassNotFoundException e) {
+				name = innerClassName;
+			}
+			cache.names.putIfAbsent(fullName, name);
+		}
+		return name;
+	}
+
 	@Override
 	public SymbolType visit(VoidType n, List<TypeParameter> arg) {
 		return new SymbolType(Void.class.getName());
@@ -247,4 +267,20 @@ public class ASTTypeNameResolver extends
 		return result;
 	}
 
+	/**
+	 * Resolved name of each scoped type name with a given class loader. The
+	 * inner class name only depends on the full name, so the full name is
+	 * enough as key.
+	 */
+	private static final class ResolvedNames {
+
+		private final ClassLoader classLoader;
+
+		private final ConcurrentMap<String, String> names = new ConcurrentHashMap<String, String>();
+
+		public ResolvedNames(ClassLoader classLoader) {
+			this.classLoader = classLoader;
+		}
+	}
+
 }
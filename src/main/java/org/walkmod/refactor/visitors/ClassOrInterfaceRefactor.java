@@ -16,13 +16,17 @@
 package org.walkmod.refactor.visitors;
 
 import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.Iterator;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
@@ -35,24 +39,37 @@ import org.walkmod.javalang.ast.PackageDeclaration;
 import org.walkmod.javalang.ast.body.TypeDeclaration;
 import org.walkmod.javalang.ast.expr.NameExpr;
 import org.walkmod.javalang.ast.type.ClassOrInterfaceType;
+import org.walkmod.javalang.ast.type.Type;
 import org.walkmod.javalang.visitors.VoidVisitorAdapter;
+import org.walkmod.refactor.config.KeywordMatcher;
+import org.walkmod.refactor.config.RulePack;
+import org.walkmod.refactor.config.RulesFileReader;
+import org.walkmod.refactor.config.RulesFileWatcher;
 import org.walkmod.walkers.VisitorContext;
 
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONObject;
-
 public class ClassOrInterfaceRefactor extends
 		VoidVisitorAdapter<VisitorContext> {
 
-	private Map<String, String> refactoringRules;
+	/**
+	 * Current rules. They are replaced, never modified, so the visits that
+	 * are in progress keep the rules they started with.
+	 */
+	private volatile RenamingRules rules = new RenamingRules(0,
+			Collections.<String, String> emptyMap());
+
+	/**
+	 * Key of the {@link VisitorContext} with the state of the visit of a
+	 * compilation unit.
+	 */
+	private static final String UNIT_STATE_KEY = "class_refactor_unit_state";
+
+	private volatile long reloadInterval = 0;
 
-	private Map<String, String> aliasOldNamesMap;
-	
-	private Map<String, String> aliasNewNamesMap;
+	private File watchedFile;
 
-	private List<ImportDeclaration> imports = new LinkedList<ImportDeclaration>();
+	private RulesFileWatcher watcher;
 
-	private CompilationUnit cu;
+	private boolean skipUnaffectedUnits = true;
 
 	private static final Log LOG = LogFactory
 			.getLog(ClassOrInterfaceRefactor.class);
@@ -60,56 +77,126 @@ public class ClassOrInterfaceRefactor extends
 	@Override
 	public void visit(ClassOrInterfaceType n, VisitorContext arg) {
 
-		String name = n.toString();
+		if (n.getTypeArgs() != null) {
+			for (Type typeArg : n.getTypeArgs()) {
+				typeArg.accept(this, arg);
+			}
+		}
+
+		String name = null;
 
 		ClassOrInterfaceType aux = null;
 
-		String simpleName = name;
-		
-		if (aliasOldNamesMap.containsKey(simpleName)) {
-			name = aliasOldNamesMap.get(simpleName);
+		UnitState state = getState(arg);
+		boolean alias = false;
+		if (n.getScope() == null) {
+			name = state.aliasOldNamesMap.get(n.getName());
+			alias = name != null;
+		}
+		if (name == null) {
+			NameSegment segment = findSegment(state.rules, n);
+			if (segment != null) {
+				name = segment.oldClassName;
+			}
 		}
 
 		// n has a complete class name
-		if (refactoringRules.containsKey(name)) {
+		if (name != null && state.rules.refactoringRules.containsKey(name)) {
 
-			String newFullName =  refactoringRules.get(name);
-			String simplifiedName = aliasNewNamesMap.get(newFullName);
+			String newFullName = state.rules.refactoringRules.get(name);
+			if (alias && state.wildcardAliases.containsKey(name)
+					&& !state.requiredImports.containsKey(newFullName)) {
+				state.requiredImports.put(newFullName,
+						state.wildcardAliases.get(name));
+			}
+			String simplifiedName = state.aliasNewNamesMap.get(newFullName);
 			if(simplifiedName != null){
 				newFullName = simplifiedName;
 			}
-			try {
-				aux = (ClassOrInterfaceType) ASTManager.parse(
-						ClassOrInterfaceType.class, newFullName);
+			aux = getReplacementType(state.rules, newFullName);
+			setModified(state, arg);
+			SourceEdits edits = SourceEdits.get(arg);
+			if (edits != null) {
+				edits.replace(n, n);
+			}
 
-			} catch (ParseException e) {
+			try {
+				n.setName(aux.getName());
+				if (aux.getScope() != null) {
+					n.setScope((ClassOrInterfaceType) aux.getScope().clone());
+				} else {
+					n.setScope(null);
+				}
+				if (aux.getTypeArgs() != null) {
+					List<Type> typeArgs = new LinkedList<Type>();
+					for (Type typeArg : aux.getTypeArgs()) {
+						typeArgs.add((Type) typeArg.clone());
+					}
+					n.setTypeArgs(typeArgs);
+				}
+			} catch (CloneNotSupportedException e) {
 				throw new WalkModException(e);
 			}
 
-			n.setName(aux.getName());
-			n.setScope(aux.getScope());
-			n.setTypeArgs(aux.getTypeArgs());
+		}
+
+	}
 
+	/**
+	 * Resolves the qualified name of a type, segment by segment, without
+	 * building its string representation.
+	 * 
+	 * @return the segment of the last name, or null if no renamed class
+	 *         starts with the qualified name.
+	 */
+	private static NameSegment findSegment(RenamingRules rules,
+			ClassOrInterfaceType type) {
+		NameSegment parent = rules.classNames;
+		if (type.getScope() != null) {
+			parent = findSegment(rules, type.getScope());
 		}
+		if (parent == null || parent.children == null) {
+			return null;
+		}
+		return parent.children.get(type.getName());
+	}
 
+	/**
+	 * Returns the parsed type of a new class name. Each name is parsed once,
+	 * and the callers must copy the parts of the returned node they use.
+	 */
+	private static ClassOrInterfaceType getReplacementType(
+			RenamingRules rules, String newName) {
+		ClassOrInterfaceType type = rules.replacementTypes.get(newName);
+		if (type == null) {
+			try {
+				type = (ClassOrInterfaceType) ASTManager.parse(
+						ClassOrInterfaceType.class, newName);
+			} catch (ParseException e) {
+				throw new WalkModException(e);
+			}
+			rules.replacementTypes.putIfAbsent(newName, type);
+		}
+		return type;
 	}
 
 	@Override
 	public void visit(ImportDeclaration n, VisitorContext arg) {
-		imports.add(n);
+		UnitState state = getState(arg);
+		state.imports.add(n);
 		try {
 			String selectedType = n.getName().toString();
 
 			if (!n.isAsterisk()) {
 				int index = selectedType.lastIndexOf(".");
-				String value = refactoringRules.get(selectedType);
+				String value = state.rules.refactoringRules.get(selectedType);
 				if (value != null) {
 					
 					if (!n.isStatic()) {
 						if (index != -1) {
 							String simpleName = selectedType
 									.substring(index + 1);
-							aliasOldNamesMap.put(simpleName, selectedType);
+							state.aliasOldNamesMap.put(simpleName, selectedType);
 							index = value.lastIndexOf(".");
 							String aliasNewName = null;
 							if(index != -1){
@@ -118,49 +205,38 @@ public class ClassOrInterfaceRefactor extends
 							else{
 								aliasNewName = value;
 							}
-							aliasNewNamesMap.put(value, aliasNewName);
+							state.aliasNewNamesMap.put(value, aliasNewName);
 						}
 					}
 					LOG.debug("Replacing the imports. Import: " + n.getName());
 
 					NameExpr newName = (NameExpr) ASTManager.parse(
-							NameExpr.class,
-							refactoringRules.get(n.getName().toString()));
+							NameExpr.class, value);
 					n.setName(newName);
+					setModified(state, arg);
+					SourceEdits edits = SourceEdits.get(arg);
+					if (edits != null) {
+						edits.replace(n, n);
+					}
 
 				}
-			} else {
-				Set<String> oldClassNames = refactoringRules.keySet();
-				for (String oldClassName : oldClassNames) {
-					if (oldClassName.startsWith(selectedType)) {
-
-						int index = oldClassName.indexOf(".");
-						if (!n.isStatic()) {
-							if (index != -1) {
-								String simpleName = oldClassName
-										.substring(index + 1);
-								aliasOldNamesMap.put(simpleName, selectedType);
-								
-								String value = refactoringRules.get(oldClassName);
-								index = value.lastIndexOf(".");
-								String aliasNewName = null;
-								if(index != -1){
-									aliasNewName = value.substring(index+1);								
-								}
-								else{
-									aliasNewName = value;
-								}
-								aliasNewNamesMap.put(value, aliasNewName);
-							}
-							ImportDeclaration id = new ImportDeclaration((NameExpr)
-									ASTManager.parse(NameExpr.class,
-											selectedType, true),
-									n.isAsterisk(), n.isStatic());
-							imports.add(id);
+			} else if (!n.isStatic()) {
+				List<String> oldClassNames = state.rules.renamedClassesByPackage
+						.get(selectedType);
+				if (oldClassNames != null) {
+					for (String oldClassName : oldClassNames) {
+						String value = registerAlias(state, oldClassName);
+						int index = value.lastIndexOf(".");
+						if (index != -1
+								&& !value.substring(0, index).equals(
+										selectedType)
+								&& !isImported(state, value)) {
+							// the new class is not visible with the wildcard,
+							// so it is imported if the unit refers to it
+							state.wildcardAliases.put(oldClassName, n);
 						}
 					}
 				}
-
 			}
 		} catch (Exception e) {
 			throw new WalkModException(e);
@@ -172,25 +248,159 @@ public class ClassOrInterfaceRefactor extends
 	}
 
 	public void visit(PackageDeclaration pd, VisitorContext arg) {
-		String name = pd.getName().toString();
-		Set<String> keys = refactoringRules.keySet();
-
-		for (String key : keys) {
-			if (key.startsWith(name)) {
-				int index = key.indexOf(".");
-				if (index != -1) {
-					String alias = key.substring(index + 1);
-					aliasOldNamesMap.put(alias, key);
-					String value = refactoringRules.get(key);
-					index = value.lastIndexOf(".");
-					String aliasNewName = null;
-					if(index != -1){
-						aliasNewName = value.substring(index+1);								
-					}
-					else{
-						aliasNewName = value;
-					}
-					aliasNewNamesMap.put(value, aliasNewName);
+		UnitState state = getState(arg);
+		List<String> oldClassNames = state.rules.renamedClassesByPackage
+				.get(pd.getName().toString());
+		if (oldClassNames != null) {
+			for (String oldClassName : oldClassNames) {
+				registerAlias(state, oldClassName);
+			}
+		}
+	}
+
+	private static boolean isImported(UnitState state, String className) {
+		for (ImportDeclaration id : state.imports) {
+			if (!id.isAsterisk() && !id.isStatic()
+					&& id.getName().toString().equals(className)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Registers that the renamed class is visible by its simple name in the
+	 * current compilation unit, and thus its new class must be referenced by
+	 * its simple name too.
+	 * 
+	 * @return the new name of the class.
+	 */
+	private static String registerAlias(UnitState state, String oldClassName) {
+		int index = oldClassName.lastIndexOf(".");
+		state.aliasOldNamesMap.put(oldClassName.substring(index + 1),
+				oldClassName);
+		String value = state.rules.refactoringRules.get(oldClassName);
+		index = value.lastIndexOf(".");
+		String aliasNewName = null;
+		if (index != -1) {
+			aliasNewName = value.substring(index + 1);
+		} else {
+			aliasNewName = value;
+		}
+		state.aliasNewNamesMap.put(value, aliasNewName);
+		return value;
+	}
+
+	/**
+	 * Checks, without visiting it, if some class refactoring rule could be
+	 * applied to a compilation unit.
+	 * 
+	 * @param n
+	 *            the compilation unit.
+	 * @return false if the compilation unit is not modified by the rules.
+	 */
+	public boolean isApplicable(CompilationUnit n) {
+		RenamingRules rules = this.rules;
+		if (rules.refactoringRules.isEmpty()) {
+			return false;
+		}
+		return !skipUnaffectedUnits || isAffected(rules, n, null);
+	}
+
+	/**
+	 * Checks, without visiting it, if some class refactoring rule could be
+	 * applied to a compilation unit. The source text avoids visiting the
+	 * units that do not mention any renamed class.
+	 * 
+	 * @param n
+	 *            the compilation unit.
+	 * @param source
+	 *            the source text of the compilation unit.
+	 * @return false if the compilation unit is not modified by the rules.
+	 */
+	public boolean isApplicable(CompilationUnit n, CharSequence source) {
+		RenamingRules rules = this.rules;
+		if (rules.refactoringRules.isEmpty()) {
+			return false;
+		}
+		return !skipUnaffectedUnits || isAffected(rules, n, source);
+	}
+
+	/**
+	 * Checks, with the package and the imports, if the compilation unit can
+	 * refer to some renamed class by its simple name. Otherwise, it looks for
+	 * references by the fully qualified name. Since a fully qualified name
+	 * always ends with the simple name of the class, even with spaces or
+	 * comments between its segments, these references are only looked for if
+	 * the source text, when it is known, contains some of these simple names.
+	 */
+	private static boolean isAffected(RenamingRules rules, CompilationUnit n,
+			CharSequence source) {
+		if (rules.hasDefaultPackageRules) {
+			return true;
+		}
+		if (n.getPackage() != null
+				&& rules.renamedClassesByPackage.containsKey(n.getPackage()
+						.getName().toString())) {
+			return true;
+		}
+		if (n.getImports() != null) {
+			for (ImportDeclaration i : n.getImports()) {
+				String name = i.getName().toString();
+				if (rules.refactoringRules.containsKey(name)) {
+					return true;
+				}
+				if (i.isAsterisk()
+						&& rules.renamedClassesByPackage.containsKey(name)) {
+					return true;
+				}
+			}
+		}
+		if (source != null && !rules.simpleNames.matches(source)) {
+			return false;
+		}
+		if (n.getTypes() != null) {
+			QualifiedReferenceFinder finder = new QualifiedReferenceFinder(rules);
+			for (TypeDeclaration type : n.getTypes()) {
+				type.accept(finder, null);
+				if (finder.found) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Finds the types that refer to some renamed class by its fully qualified
+	 * name, in the same way the refactor resolves them.
+	 */
+	private static final class QualifiedReferenceFinder extends
+			VoidVisitorAdapter<Object> {
+
+		private final RenamingRules rules;
+
+		private boolean found = false;
+
+		private QualifiedReferenceFinder(RenamingRules rules) {
+			this.rules = rules;
+		}
+
+		@Override
+		public void visit(ClassOrInterfaceType n, Object arg) {
+			if (found) {
+				return;
+			}
+			if (n.getScope() != null) {
+				NameSegment segment = findSegment(rules, n);
+				if (segment != null && segment.oldClassName != null) {
+					found = true;
+					return;
+				}
+			}
+			if (n.getTypeArgs() != null) {
+				for (Type typeArg : n.getTypeArgs()) {
+					typeArg.accept(this, arg);
 				}
 			}
 		}
@@ -198,12 +408,13 @@ public class ClassOrInterfaceRefactor extends
 
 	@Override
 	public void visit(CompilationUnit n, VisitorContext arg) {
-		if (refactoringRules != null && !refactoringRules.isEmpty()) {
-			this.cu = n;
-			aliasOldNamesMap = new HashMap<String, String>();
-			aliasNewNamesMap = new HashMap<String, String>();
-			
-			imports = new LinkedList<ImportDeclaration>();
+		UnitState state = new UnitState(rules);
+		if (state.rules.refactoringRules.isEmpty()
+				|| (skipUnaffectedUnits && !isAffected(state.rules, n, null))) {
+			return;
+		}
+		Object previous = arg.put(UNIT_STATE_KEY, state);
+		try {
 			if (n.getPackage() != null) {
 				n.getPackage().accept(this, arg);
 			}
@@ -227,10 +438,72 @@ public class ClassOrInterfaceRefactor extends
 					typeDeclaration.accept(this, arg);
 				}
 			}
-			cu.setImports(imports);
+			addRequiredImports(state, arg);
+			// the imports are only replaced if some rule has changed them
+			if (state.modified) {
+				n.setImports(state.imports);
+			}
+		} finally {
+			if (previous != null) {
+				arg.put(UNIT_STATE_KEY, previous);
+			} else {
+				arg.remove(UNIT_STATE_KEY);
+			}
 		}
 	}
-	
+
+	/**
+	 * Returns the state of the visit of the compilation unit. The nodes that
+	 * are visited on their own get a state with the current rules.
+	 */
+	private UnitState getState(VisitorContext arg) {
+		UnitState state = (UnitState) arg.get(UNIT_STATE_KEY);
+		if (state == null) {
+			state = new UnitState(rules);
+			arg.put(UNIT_STATE_KEY, state);
+		}
+		return state;
+	}
+
+	/**
+	 * Records that some rule has changed the compilation unit, which is
+	 * reported with the {@link MethodRefactor#MODIFIED_KEY} of the context.
+	 */
+	private static void setModified(UnitState state, VisitorContext arg) {
+		state.modified = true;
+		arg.put(MethodRefactor.MODIFIED_KEY, Boolean.TRUE);
+	}
+
+	/**
+	 * Imports the new classes that are referenced through a wildcard import,
+	 * right after it.
+	 */
+	private static void addRequiredImports(UnitState state, VisitorContext arg) {
+		SourceEdits edits = SourceEdits.get(arg);
+		List<ImportDeclaration> imports = state.imports;
+		for (Map.Entry<String, ImportDeclaration> entry : state.requiredImports
+				.entrySet()) {
+			ImportDeclaration wildcard = entry.getValue();
+			ImportDeclaration id;
+			try {
+				id = new ImportDeclaration((NameExpr) ASTManager.parse(
+						NameExpr.class, entry.getKey(), true), false, false);
+			} catch (ParseException e) {
+				throw new WalkModException(e);
+			}
+			int index = imports.indexOf(wildcard) + 1;
+			while (index < imports.size() && !imports.get(index).isAsterisk()) {
+				// after the imports that are already added for the wildcard
+				index++;
+			}
+			imports.add(index, id);
+			setModified(state, arg);
+			if (edits != null) {
+				edits.insertAfter(wildcard, id);
+			}
+		}
+	}
+
 	public void setRefactoringConfigFile(String refactoringConfigFile)
 			throws Exception {
 		File file = new File(refactoringConfigFile);
@@ -240,23 +513,8 @@ public class ClassOrInterfaceRefactor extends
 		if (file.exists()) {
 
 			if (file.canRead()) {
-
-				String text = new Scanner(file).useDelimiter("\\A").next();
-
-				JSONObject o = JSON.parseObject(text);
-
-				Map<String, String> aux = new HashMap<String, String>();
-
-				Set<Map.Entry<String, Object>> entries = o.entrySet();
-
-				Iterator<Map.Entry<String, Object>> it = entries.iterator();
-
-				while (it.hasNext()) {
-					Map.Entry<String, Object> entry = it.next();
-					aux.put(entry.getKey(), entry.getValue().toString());
-					it.remove();
-				}
-				setRefactoringRules(aux);
+				watch(file);
+				loadRules(file);
 			} else {
 				LOG.error("The constants config file ["
 						+ refactoringConfigFile + "] cannot be read");
@@ -267,8 +525,222 @@ public class ClassOrInterfaceRefactor extends
 		}
 	}
 
+	private void loadRules(File file) throws IOException {
+		Map<String, String> aux = new LinkedHashMap<String, String>();
+		RulesFileReader reader = new RulesFileReader(file);
+		try {
+			while (reader.hasNext()) {
+				Map.Entry<String, String> entry = reader.next();
+				aux.put(entry.getKey(), entry.getValue());
+			}
+		} finally {
+			reader.close();
+		}
+		publish(aux);
+	}
+
+	/**
+	 * Sets the milliseconds between two checks of the refactoring config
+	 * file, which is reloaded when it is modified. By default, the file is not
+	 * checked.
+	 * 
+	 * @param reloadInterval
+	 *            milliseconds between two checks, or 0 to stop checking.
+	 */
+	public void setReloadInterval(long reloadInterval) {
+		this.reloadInterval = reloadInterval;
+		watch(watchedFile);
+	}
+
+	public long getReloadInterval() {
+		return reloadInterval;
+	}
+
+	private synchronized void watch(File file) {
+		watchedFile = file;
+		if (watcher != null) {
+			watcher.close();
+			watcher = null;
+		}
+		if (file != null && reloadInterval > 0) {
+			watcher = new RulesFileWatcher(reloadInterval);
+			watcher.watch(file, new RulesFileWatcher.Listener() {
+
+				public void changed(File file) throws Exception {
+					loadRules(file);
+				}
+			});
+		}
+	}
+
+	/**
+	 * Replaces the rules. The map is copied, so later changes of the map do
+	 * not affect the visitor.
+	 */
 	public void setRefactoringRules(Map<String, String> refactoringRules) {
-		this.refactoringRules = refactoringRules;
+		Map<String, String> copy = new LinkedHashMap<String, String>();
+		if (refactoringRules != null) {
+			copy.putAll(refactoringRules);
+		}
+		publish(copy);
+	}
+
+	/**
+	 * Replaces the rules by the class renamings of a precompiled rule pack,
+	 * which is mapped into memory.
+	 */
+	public void setRulePackFile(String rulePackFile) throws IOException {
+		publish(RulePack.load(new File(rulePackFile)).getClassRules());
+	}
+
+	private synchronized void publish(Map<String, String> refactoringRules) {
+		rules = new RenamingRules(rules.version + 1, refactoringRules);
+	}
+
+	public Map<String, String> getRefactoringRules() {
+		return rules.refactoringRules;
+	}
+
+	/**
+	 * Returns the number of times that the rules have been replaced.
+	 */
+	public long getRulesVersion() {
+		return rules.version;
+	}
+
+	/**
+	 * Sets if the compilation units that neither belong to, nor import from,
+	 * a package with renamed classes, nor refer to a renamed class by its
+	 * fully qualified name, are returned untouched without rewriting them.
+	 * Enabled by default.
+	 */
+	public void setSkipUnaffectedUnits(boolean skipUnaffectedUnits) {
+		this.skipUnaffectedUnits = skipUnaffectedUnits;
+	}
+
+	/**
+	 * Immutable rules and the indexes derived from them.
+	 */
+	private static final class RenamingRules {
+
+		private final long version;
+
+		private final Map<String, String> refactoringRules;
+
+		/**
+		 * If some renamed class has no package, every compilation unit can
+		 * refer to it without an import.
+		 */
+		private final boolean hasDefaultPackageRules;
+
+		/**
+		 * Renamed classes grouped by the exact package (or enclosing class)
+		 * that contains them.
+		 */
+		private final Map<String, List<String>> renamedClassesByPackage = new HashMap<String, List<String>>();
+
+		/**
+		 * Renamed classes indexed by the segments of their qualified names.
+		 */
+		private final NameSegment classNames = new NameSegment();
+
+		/**
+		 * Simple names of the renamed classes.
+		 */
+		private final KeywordMatcher simpleNames;
+
+		/**
+		 * Parsed types of the new class names (or their simplified aliases).
+		 */
+		private final ConcurrentMap<String, ClassOrInterfaceType> replacementTypes = new ConcurrentHashMap<String, ClassOrInterfaceType>();
+
+		/**
+		 * @param refactoringRules
+		 *            the rules, which must not be modified afterwards.
+		 */
+		public RenamingRules(long version, Map<String, String> refactoringRules) {
+			this.version = version;
+			boolean defaultPackageRules = false;
+			Set<String> names = new HashSet<String>();
+			for (String oldClassName : refactoringRules.keySet()) {
+				classNames.add(oldClassName);
+				names.add(oldClassName.substring(oldClassName.lastIndexOf('.') + 1));
+				int index = oldClassName.lastIndexOf('.');
+				if (index == -1) {
+					defaultPackageRules = true;
+				} else {
+					String packageName = oldClassName.substring(0, index);
+					List<String> classNames = renamedClassesByPackage
+							.get(packageName);
+					if (classNames == null) {
+						classNames = new LinkedList<String>();
+						renamedClassesByPackage.put(packageName, classNames);
+					}
+					classNames.add(oldClassName);
+				}
+			}
+			this.refactoringRules = Collections
+					.unmodifiableMap(refactoringRules);
+			this.hasDefaultPackageRules = defaultPackageRules;
+			this.simpleNames = new KeywordMatcher(names);
+		}
+	}
+
+	/**
+	 * State of the visit of a compilation unit, with the rules it started
+	 * with. It is kept in the {@link VisitorContext}, so the visitor can be
+	 * shared by concurrent visits.
+	 */
+	private static final class UnitState {
+
+		private final RenamingRules rules;
+
+		private final Map<String, String> aliasOldNamesMap = new HashMap<String, String>();
+
+		private final Map<String, String> aliasNewNamesMap = new HashMap<String, String>();
+
+		private final List<ImportDeclaration> imports = new LinkedList<ImportDeclaration>();
+
+		/**
+		 * Wildcard imports that make visible renamed classes whose new classes
+		 * are not visible with them, by old class name.
+		 */
+		private final Map<String, ImportDeclaration> wildcardAliases = new HashMap<String, ImportDeclaration>();
+
+		/**
+		 * New classes that are referenced through a wildcard import, and thus
+		 * need their own import, with the wildcard import they come from.
+		 */
+		private final Map<String, ImportDeclaration> requiredImports = new LinkedHashMap<String, ImportDeclaration>();
+
+		private boolean modified = false;
+
+		private UnitState(RenamingRules rules) {
+			this.rules = rules;
+		}
+	}
+
+	private static class NameSegment {
+
+		private Map<String, NameSegment> children;
+
+		private String oldClassName;
+
+		public void add(String className) {
+			NameSegment current = this;
+			for (String segment : className.split("\\.")) {
+				if (current.children == null) {
+					current.children = new HashMap<String, NameSegment>();
+				}
+				NameSegment next = current.children.get(segment);
+				if (next == null) {
+					next = new NameSegment();
+					current.children.put(segment, next);
+				}
+				current = next;
+			}
+			current.oldClassName = className;
+		}
 	}
 
 }
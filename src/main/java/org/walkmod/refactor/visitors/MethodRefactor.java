@@ -16,20 +16,27 @@
 package org.walkmod.refactor.visitors;
 
 import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Member;
 import java.lang.reflect.Method;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
-import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 import org.apache.log4j.Logger;
 import org.walkmod.exceptions.InvalidTransformationRuleException;
 import org.walkmod.exceptions.WalkModException;
 import org.walkmod.javalang.ast.CompilationUnit;
+import org.walkmod.javalang.ast.ConstructorSymbolData;
 import org.walkmod.javalang.ast.MethodSymbolData;
 import org.walkmod.javalang.ast.SymbolData;
 import org.walkmod.javalang.ast.body.MethodDeclaration;
@@ -51,68 +58,125 @@ import org.walkmod.javalang.compiler.symbols.RequiresSemanticAnalysis;
 import org.walkmod.javalang.compiler.symbols.SymbolType;
 import org.walkmod.javalang.visitors.VoidVisitor;
 import org.walkmod.javalang.visitors.VoidVisitorAdapter;
+import org.walkmod.refactor.config.KeywordMatcher;
 import org.walkmod.refactor.config.MethodRefactoringRule;
 import org.walkmod.refactor.config.RefactoringRulesDictionary;
+import org.walkmod.refactor.config.RulePack;
+import org.walkmod.refactor.config.RulesFileReader;
+import org.walkmod.refactor.config.RulesFileWatcher;
 import org.walkmod.walkers.VisitorContext;
 
-import com.alibaba.fastjson.JSON;
-import com.alibaba.fastjson.JSONObject;
-
 @RequiresSemanticAnalysis
 public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
 
-   private RefactoringRulesDictionary refactoringRules;
-
-   private Map<String, String> inputRules;
-
-   private ExpressionRefactor exprRefactor;
-
    private static final String UPDATED_STATEMENT_KEY = "updated_statement_key";
 
    private static final String UPDATED_EXPRESSION_KEY = "updated_expression_key";
 
+   private static final String COMPILED_RULES_KEY = "method_refactor_compiled_rules";
+
    public static final String PREVIOUS_REQUIRED_STATEMENTS_KEY = "previous_required_statements";
 
    public static final String FORWARD_REQUIRED_STATEMENTS_KEY = "forward_required_statements";
 
+   /**
+    * Set to {@link Boolean#TRUE} in the context when some rule changes the
+    * visited compilation unit.
+    */
+   public static final String MODIFIED_KEY = "compilation_unit_modified";
+
+   /**
+    * Optional {@link SourceEdits} of the context where the visitors record
+    * the source ranges they change.
+    */
+   public static final String SOURCE_EDITS_KEY = "source_edits";
+
    private static Logger LOG = Logger.getLogger(MethodRefactor.class);
 
-   private ClassLoader classLoader = null;
+   private volatile ClassLoader classLoader = null;
 
-   private Map<Method, VoidVisitor<?>> refactoringVisitors;
-   
-   private Map<String, VoidVisitor<?>> auxRefactoringVisitors;
+   private volatile boolean lazyCompilation = false;
 
-   private boolean setUp = false;
+   private volatile long reloadInterval = 0;
+
+   private File watchedFile;
+
+   private RulesFileWatcher watcher;
+
+   /**
+    * Immutable snapshot of the configuration. It is shared by all the visits,
+    * which can run concurrently, while the state of each visit is kept in its
+    * own {@link VisitorContext}. A new configuration replaces the snapshot,
+    * and the visits in progress keep the snapshot they started with.
+    */
+   private volatile CompiledRules compiledRules = new CompiledRules(0, new RefactoringRulesDictionary(null), null);
 
    public MethodRefactor() {
    }
 
+   /**
+    * Sets if the rules that are set afterwards are only compiled when a call
+    * with a compatible scope type is found. It reduces the startup time with
+    * big libraries of rules, but the invalid rules are reported while the
+    * code is refactored.
+    */
+   public void setLazyCompilation(boolean lazyCompilation) {
+      this.lazyCompilation = lazyCompilation;
+   }
+
+   public boolean isLazyCompilation() {
+      return lazyCompilation;
+   }
+
+   /**
+    * Sets the class loader of the rules that are compiled afterwards.
+    */
    public void setClassLoader(ClassLoader classLoader) {
       this.classLoader = classLoader;
    }
 
    @Override
    public void visit(CompilationUnit unit, VisitorContext arg) {
-      if (!setUp) {
-
-         this.refactoringRules = new RefactoringRulesDictionary(classLoader);
-         auxRefactoringVisitors = new HashMap<String, VoidVisitor<?>>();
-         exprRefactor = new ExpressionRefactor();
-
-         refactoringRules.putRules(inputRules);
-         
-         if(refactoringVisitors != null){
-            Set<Method> keys = refactoringVisitors.keySet();
-            for(Method m: keys){
-               auxRefactoringVisitors.put(m.toString(), refactoringVisitors.get(m));
-            }
-         }
-         setUp = true;
+      arg.put(COMPILED_RULES_KEY, getCompiledRules());
+      try {
+         super.visit(unit, arg);
+      } finally {
+         arg.remove(COMPILED_RULES_KEY);
       }
+   }
 
-      super.visit(unit, arg);
+   /**
+    * Checks, without parsing nor analyzing it, if some refactoring rule could
+    * be applied to a source file. Walkers can use it to skip the semantic
+    * analysis and this visitor for the files that do not mention any source
+    * method or constructor of the rules.
+    * 
+    * @param source
+    *           the contents of the source file.
+    * @return false if the source file cannot be modified by the rules.
+    */
+   public boolean isApplicable(CharSequence source) {
+      return getCompiledRules().isApplicable(source);
+   }
 
+   private CompiledRules getCompiledRules() {
+      return compiledRules;
+   }
+
+   private CompiledRules getCompiledRules(VisitorContext arg) {
+      CompiledRules rules = (CompiledRules) arg.get(COMPILED_RULES_KEY);
+      if (rules == null) {
+         rules = compiledRules;
+      }
+      return rules;
+   }
+
+   /**
+    * Returns the number of times that the rules or the refactoring visitors
+    * have been replaced.
+    */
+   public long getRulesVersion() {
+      return compiledRules.version;
    }
 
    public void visit(AssignExpr n, VisitorContext arg) {
@@ -146,18 +210,33 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
 
       MethodSymbolData msd = n.getSymbolData();
       if (msd != null) {
-         if(refactoringVisitors != null){
-            
-            VoidVisitor<?> visitor = auxRefactoringVisitors.get(msd.getMethod().toString());
-            if(visitor != null){
-               n.accept(visitor, null);
+         VoidVisitor<?> visitor = getCompiledRules(arg).getRefactoringVisitor(msd.getMethod());
+         if (visitor != null) {
+            // the visitors do not report their changes
+            String original = n.toString();
+            n.accept(visitor, null);
+            if (!original.equals(n.toString())) {
+               arg.put(MODIFIED_KEY, Boolean.TRUE);
+               SourceEdits edits = SourceEdits.get(arg);
+               if (edits != null) {
+                  edits.replace(n, n);
+               }
             }
          }
       }
    }
 
-   public void setRefactoringVisitors(Map<Method, VoidVisitor<?>> refactoringVisitors) {
-      this.refactoringVisitors = refactoringVisitors;
+   public synchronized void setRefactoringVisitors(Map<Method, VoidVisitor<?>> refactoringVisitors) {
+      CompiledRules current = compiledRules;
+      compiledRules = new CompiledRules(current.version + 1, current.dictionary, refactoringVisitors);
+   }
+
+   /**
+    * Checks if some rule has changed the compilation unit visited with the
+    * context.
+    */
+   public static boolean isModified(VisitorContext arg) {
+      return Boolean.TRUE.equals(arg.get(MODIFIED_KEY));
    }
 
    @Override
@@ -199,7 +278,8 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
 
       MethodSymbolData resultType = n.getSymbolData();
 
-      Class<?> scopeClass = resultType.getMethod().getDeclaringClass();
+      Method method = resultType.getMethod();
+      Class<?> scopeClass = method.getDeclaringClass();
       SymbolType scopeST = new SymbolType(scopeClass);
       try {
 
@@ -254,18 +334,26 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
             argClazzes = new SymbolType[0];
          }
 
-         MethodRefactoringRule mrr = refactoringRules.getRefactoringRule(scopeST, n.getName(), argClazzes);
+         CompiledRules rules = getCompiledRules(arg);
+         MethodRefactoringRule mrr = null;
+         if (!method.isVarArgs()) {
+            mrr = rules.getRefactoringRule(method, scopeST, n.getName(), argClazzes);
+         } else {
+            mrr = rules.dictionary.getRefactoringRule(scopeST, n.getName(), argClazzes);
+         }
 
          // does exists some refactoring rule?
          if (mrr != null) {
 
             LOG.debug("refactoring [ " + n.toString() + " ]");
+            arg.put(MODIFIED_KEY, Boolean.TRUE);
             // changing the method's name
             n.setName(mrr.getMethodName());
 
             Map<String, Expression> variableMap = new HashMap<String, Expression>();
             Map<String, SymbolData> variableTypes = new HashMap<String, SymbolData>();
 
+            ExpressionRefactor exprRefactor = new ExpressionRefactor();
             exprRefactor.setVariable(variableMap);
             exprRefactor.setVariableTypes(variableTypes);
 
@@ -352,6 +440,10 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
                }
                arg.put(UPDATED_EXPRESSION_KEY, resultExpression);
             }
+            SourceEdits edits = SourceEdits.get(arg);
+            if (edits != null) {
+               edits.replace(n, resultExpression != null ? resultExpression : n);
+            }
 
          }
 
@@ -387,6 +479,8 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
       if (n.getStmts() != null) {
 
          List<Statement> stmts = new LinkedList<Statement>();
+         boolean updated = false;
+         SourceEdits edits = SourceEdits.get(arg);
 
          for (Statement s : n.getStmts()) {
 
@@ -394,11 +488,15 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
 
             @SuppressWarnings("unchecked")
             Collection<Statement> reqStmts = (Collection<Statement>) arg.get(PREVIOUS_REQUIRED_STATEMENTS_KEY);
-            if (reqStmts != null) {
+            if (reqStmts != null && !reqStmts.isEmpty()) {
                for (Statement ns : reqStmts) {
                   stmts.add(ns);
+                  if (edits != null) {
+                     edits.insertBefore(s, ns);
+                  }
                }
                reqStmts.clear();
+               updated = true;
             }
 
             if (!arg.containsKey(UPDATED_STATEMENT_KEY)) {
@@ -406,25 +504,40 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
                stmts.add(s);
             } else {
                if (arg.get(UPDATED_STATEMENT_KEY) != null) {
-                  stmts.add((Statement) arg.remove(UPDATED_STATEMENT_KEY));
+                  Statement updatedStmt = (Statement) arg.remove(UPDATED_STATEMENT_KEY);
+                  stmts.add(updatedStmt);
+                  if (edits != null) {
+                     edits.replace(s, updatedStmt);
+                  }
                } else {
 
                   arg.remove(UPDATED_STATEMENT_KEY);
+                  if (edits != null) {
+                     edits.remove(s);
+                  }
                }
+               updated = true;
             }
 
             @SuppressWarnings("unchecked")
             Collection<Statement> forStmts = (Collection<Statement>) arg.remove(FORWARD_REQUIRED_STATEMENTS_KEY);
-            if (forStmts != null) {
+            if (forStmts != null && !forStmts.isEmpty()) {
                for (Statement ns : forStmts) {
                   stmts.add(ns);
+                  if (edits != null) {
+                     edits.insertAfter(s, ns);
+                  }
                }
                forStmts.clear();
+               updated = true;
             }
          }
-         n.setStmts(stmts);
-         if (stmts.isEmpty()) {
-            arg.put(UPDATED_STATEMENT_KEY, null);
+         // the statements are only replaced if some rule has changed them
+         if (updated) {
+            n.setStmts(stmts);
+            if (stmts.isEmpty()) {
+               arg.put(UPDATED_STATEMENT_KEY, null);
+            }
          }
       }
 
@@ -438,38 +551,135 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
       if (file.exists()) {
 
          if (file.canRead()) {
+            watch(file);
+            loadRules(file);
+         } else {
+            LOG.error("The refactoring config file [" + refactoringConfigFile + "] cannot be read");
+         }
+      } else {
+         LOG.error("The refactoring config file [" + refactoringConfigFile + "] does not exist");
+      }
+   }
 
-            String text = new Scanner(file).useDelimiter("\\A").next();
-
-            JSONObject o = JSON.parseObject(text);
+   private void loadRules(File file) throws IOException {
+      RulesFileReader reader = new RulesFileReader(file);
+      try {
+         setRefactoringRules(reader);
+      } finally {
+         reader.close();
+      }
+   }
 
-            Map<String, String> aux = new HashMap<String, String>();
+   /**
+    * Sets the milliseconds between two checks of the refactoring config file.
+    * When the file is modified, its rules are reloaded and only the new and
+    * modified rules are compiled. By default, the file is not checked.
+    * 
+    * @param reloadInterval
+    *           milliseconds between two checks, or 0 to stop checking.
+    */
+   public void setReloadInterval(long reloadInterval) {
+      this.reloadInterval = reloadInterval;
+      watch(watchedFile);
+   }
 
-            Set<Map.Entry<String, Object>> entries = o.entrySet();
+   public long getReloadInterval() {
+      return reloadInterval;
+   }
 
-            Iterator<Map.Entry<String, Object>> it = entries.iterator();
+   private synchronized void watch(File file) {
+      watchedFile = file;
+      if (watcher != null) {
+         watcher.close();
+         watcher = null;
+      }
+      if (file != null && reloadInterval > 0) {
+         watcher = new RulesFileWatcher(reloadInterval);
+         watcher.watch(file, new RulesFileWatcher.Listener() {
 
-            while (it.hasNext()) {
-               Map.Entry<String, Object> entry = it.next();
-               aux.put(entry.getKey(), entry.getValue().toString());
-               it.remove();
+            public void changed(File file) throws Exception {
+               loadRules(file);
             }
-            setRefactoringRules(aux);
-         } else {
-            LOG.error("The refactoring config file [" + refactoringConfigFile + "] cannot be read");
-         }
-      } else {
-         LOG.error("The refactoring config file [" + refactoringConfigFile + "] does not exist");
+         });
       }
    }
 
+   /**
+    * Compiles the rules and replaces the current ones. If some rule is not
+    * valid, the current rules are kept.
+    * 
+    * @param inputRules
+    *           the rules, which are not retained.
+    */
    public void setRefactoringRules(Map<String, String> inputRules) throws InvalidTransformationRuleException {
-      this.inputRules = inputRules;
+      Iterator<Map.Entry<String, String>> entries = Collections.<String, String> emptyMap().entrySet().iterator();
+      if (inputRules != null) {
+         entries = inputRules.entrySet().iterator();
+      }
+      setRefactoringRules(entries);
+   }
+
+   private void setRefactoringRules(Iterator<Map.Entry<String, String>> entries) {
+      RefactoringRulesDictionary dictionary = new RefactoringRulesDictionary(classLoader, lazyCompilation);
+      dictionary.putRules(entries, compiledRules.dictionary);
+      publish(dictionary);
+   }
+
+   /**
+    * Replaces the current rules by the method rules of a precompiled rule
+    * pack, which is mapped into memory.
+    * 
+    * @param rulePackFile
+    *           the rule pack, written with {@link RulePack#main}.
+    */
+   public void setRulePackFile(String rulePackFile) throws IOException {
+      setRulePack(RulePack.load(new File(rulePackFile)));
+   }
 
+   public void setRulePack(RulePack rulePack) {
+      publish(rulePack.getMethodRules(classLoader));
    }
 
+   private synchronized void publish(RefactoringRulesDictionary dictionary) {
+      CompiledRules current = compiledRules;
+      compiledRules = new CompiledRules(current.version + 1, dictionary, current.visitors);
+   }
+
+   /**
+    * Returns the names of the methods that the current rules refactor.
+    */
+   public Set<String> getSourceMethodNames() {
+      return compiledRules.dictionary.getSourceMethodNames();
+   }
+
+   /**
+    * Returns the classes whose methods the current rules refactor, by method
+    * name.
+    */
+   public Map<String, Set<String>> getSourceMethodScopes() {
+      return compiledRules.dictionary.getSourceMethodScopes();
+   }
+
+   /**
+    * Returns the definitions of the current rules.
+    */
    public Map<String, String> getRefactoringRules() {
-      return inputRules;
+      return compiledRules.dictionary.getRules();
+   }
+
+   /**
+    * Returns the dictionary of the current rules.
+    */
+   RefactoringRulesDictionary getRefactoringRulesDictionary() {
+      return compiledRules.dictionary;
+   }
+
+   /**
+    * Returns the candidate rules remembered for a method or constructor, or
+    * null if no call to it has been visited with the current rules.
+    */
+   List<MethodRefactoringRule> getCandidateRules(Member member) {
+      return compiledRules.rulesByMember.get(member);
    }
 
    @Override
@@ -477,17 +687,23 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
 
       if (n.getStmts() != null) {
          List<Statement> stmts = new LinkedList<Statement>();
+         boolean updated = false;
+         SourceEdits edits = SourceEdits.get(arg);
          for (Statement s : n.getStmts()) {
 
             s.accept(this, arg);
 
             @SuppressWarnings("unchecked")
             Collection<Statement> reqStmts = (Collection<Statement>) arg.get(PREVIOUS_REQUIRED_STATEMENTS_KEY);
-            if (reqStmts != null) {
+            if (reqStmts != null && !reqStmts.isEmpty()) {
                for (Statement ns : reqStmts) {
                   stmts.add(ns);
+                  if (edits != null) {
+                     edits.insertBefore(s, ns);
+                  }
                }
                reqStmts.clear();
+               updated = true;
             }
 
             if (!arg.containsKey(UPDATED_STATEMENT_KEY)) {
@@ -495,25 +711,40 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
                stmts.add(s);
             } else {
                if (arg.get(UPDATED_STATEMENT_KEY) != null) {
-                  stmts.add((Statement) arg.remove(UPDATED_STATEMENT_KEY));
+                  Statement updatedStmt = (Statement) arg.remove(UPDATED_STATEMENT_KEY);
+                  stmts.add(updatedStmt);
+                  if (edits != null) {
+                     edits.replace(s, updatedStmt);
+                  }
                } else {
 
                   arg.remove(UPDATED_STATEMENT_KEY);
+                  if (edits != null) {
+                     edits.remove(s);
+                  }
                }
+               updated = true;
             }
 
             @SuppressWarnings("unchecked")
             Collection<Statement> forStmts = (Collection<Statement>) arg.remove(FORWARD_REQUIRED_STATEMENTS_KEY);
-            if (forStmts != null) {
+            if (forStmts != null && !forStmts.isEmpty()) {
                for (Statement ns : forStmts) {
                   stmts.add(ns);
+                  if (edits != null) {
+                     edits.insertAfter(s, ns);
+                  }
                }
                forStmts.clear();
+               updated = true;
             }
          }
-         n.setStmts(stmts);
-         if (stmts.isEmpty()) {
-            arg.put(UPDATED_STATEMENT_KEY, null);
+         // the statements are only replaced if some rule has changed them
+         if (updated) {
+            n.setStmts(stmts);
+            if (stmts.isEmpty()) {
+               arg.put(UPDATED_STATEMENT_KEY, null);
+            }
          }
       }
 
@@ -536,6 +767,10 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
          n.setCondition(notExpr);
          n.setThenStmt(n.getElseStmt());
          n.setElseStmt(null);
+         SourceEdits edits = SourceEdits.get(arg);
+         if (edits != null) {
+            edits.replace(n, n);
+         }
 
          if (n.getThenStmt() != null) {
             n.getThenStmt().accept(this, arg);
@@ -568,6 +803,7 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
       List<Expression> refactoredArgs = new LinkedList<Expression>();
       if (args != null) {
 
+         boolean updatedArgs = false;
          argStr = new SymbolType[n.getArgs().size()];
          int i = 0;
          for (Expression e : args) {
@@ -585,6 +821,7 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
             e.accept(this, arg);
             if (arg.containsKey(UPDATED_EXPRESSION_KEY)) {
                refactoredArgs.add((Expression) arg.remove(UPDATED_EXPRESSION_KEY));
+               updatedArgs = true;
             } else {
                refactoredArgs.add(e);
             }
@@ -592,22 +829,38 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
             i++;
          }
 
-         n.setArgs(refactoredArgs);
+         if (updatedArgs) {
+            n.setArgs(refactoredArgs);
+         }
       }
       try {
-         MethodRefactoringRule mrr = refactoringRules.getRefactoringRule((SymbolType) objectScope,
-               n.getType().getName(), argStr);
+         CompiledRules rules = getCompiledRules(arg);
+         MethodRefactoringRule mrr = null;
+         Constructor<?> constructor = null;
+         ConstructorSymbolData csd = n.getSymbolData();
+         if (csd != null && n.getAnonymousClassBody() == null) {
+            constructor = csd.getConstructor();
+         }
+         if (constructor != null && !constructor.isVarArgs()) {
+            mrr = rules.getRefactoringRule(constructor, (SymbolType) objectScope, n.getType().getName(),
+                  argStr == null ? new SymbolType[0] : argStr);
+         } else {
+            mrr = rules.dictionary.getRefactoringRule((SymbolType) objectScope, n.getType().getName(), argStr);
+         }
 
          if (mrr != null) {
             LOG.debug("refactoring [" + n.toString() + "]");
+            arg.put(MODIFIED_KEY, Boolean.TRUE);
             // changing the constructor's name
             String newConstructorName = mrr.getMethodName();
+            Expression replacement = n;
             if (mrr.getScope() != null) {
                newConstructorName = mrr.getScope() + "." + newConstructorName;
             }
 
             Map<String, Expression> variableMap = new HashMap<String, Expression>();
 
+            ExpressionRefactor exprRefactor = new ExpressionRefactor();
             exprRefactor.setVariable(variableMap);
 
             // actualizamos los args
@@ -659,10 +912,14 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
                aux.setName(mrr.getMethodName());
                aux.setArgs(n.getArgs());
                arg.put(UPDATED_EXPRESSION_KEY, aux);
-
+               replacement = aux;
             }
 
             n.getType().setName(newConstructorName);
+            SourceEdits edits = SourceEdits.get(arg);
+            if (edits != null) {
+               edits.replace(n, replacement);
+            }
          }
 
       } catch (Exception e) {
@@ -690,4 +947,77 @@ public class MethodRefactor extends VoidVisitorAdapter<VisitorContext> {
 
    }
 
+   /**
+    * Rules and visitors resolved from the configuration. All the fields are
+    * safely published through the volatile reference of the visitor, and
+    * only the per-member cache is modified afterwards.
+    */
+   private static final class CompiledRules {
+
+      private final long version;
+
+      private final Map<Method, VoidVisitor<?>> visitors;
+
+      private final RefactoringRulesDictionary dictionary;
+
+      private final Map<String, VoidVisitor<?>> refactoringVisitors;
+
+      private final KeywordMatcher refactoringVisitorsMatcher;
+
+      /**
+       * Candidate rules of each resolved method or constructor. An empty list
+       * means that no rule can be applied to the member.
+       */
+      private final ConcurrentMap<Member, List<MethodRefactoringRule>> rulesByMember = new ConcurrentHashMap<Member, List<MethodRefactoringRule>>();
+
+      public CompiledRules(long version, RefactoringRulesDictionary dictionary, Map<Method, VoidVisitor<?>> visitors) {
+         this.version = version;
+         this.dictionary = dictionary;
+         if (visitors != null) {
+            visitors = Collections.unmodifiableMap(new HashMap<Method, VoidVisitor<?>>(visitors));
+         }
+         this.visitors = visitors;
+         refactoringVisitors = new HashMap<String, VoidVisitor<?>>();
+         Set<String> names = new HashSet<String>();
+         if (visitors != null) {
+            for (Map.Entry<Method, VoidVisitor<?>> entry : visitors.entrySet()) {
+               refactoringVisitors.put(entry.getKey().toString(), entry.getValue());
+               names.add(entry.getKey().getName());
+            }
+         }
+         refactoringVisitorsMatcher = new KeywordMatcher(names);
+      }
+
+      public boolean isApplicable(CharSequence source) {
+         return dictionary.isApplicable(source) || refactoringVisitorsMatcher.matches(source);
+      }
+
+      public VoidVisitor<?> getRefactoringVisitor(Method method) {
+         if (refactoringVisitors.isEmpty()) {
+            return null;
+         }
+         return refactoringVisitors.get(method.toString());
+      }
+
+      /**
+       * Resolves the rule for a call to a non-varargs method or constructor.
+       * The candidate rules only depend on the member, so they are computed
+       * once per member and only the argument types are checked afterwards.
+       */
+      public MethodRefactoringRule getRefactoringRule(Member member, SymbolType scope, String name,
+            SymbolType[] args) {
+         List<MethodRefactoringRule> candidates = rulesByMember.get(member);
+         if (candidates == null) {
+            candidates = dictionary.getRefactoringRules(scope, name, args.length);
+            rulesByMember.putIfAbsent(member, candidates);
+         }
+         for (MethodRefactoringRule candidate : candidates) {
+            if (candidate.isCompatible(args)) {
+               return candidate;
+            }
+         }
+         return null;
+      }
+   }
+
 }
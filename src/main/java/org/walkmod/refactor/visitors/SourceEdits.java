@@ -0,0 +1,499 @@
+/* 
+  Copyright (C) 2013 Raquel Pau and Albert Coroleu.
+ 
+ Walkmod is free software: you can redistribute it and/or modify
+ it under the terms of the GNU Lesser General Public License as published by
+ the Free Software Foundation, either version 3 of the License, or
+ (at your option) any later version.
+ 
+ Walkmod is distributed in the hope that it will be useful,
+ but WITHOUT ANY WARRANTY; without even the implied warranty of
+ MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ GNU Lesser General Public License for more details.
+ 
+ You should have received a copy of the GNU Lesser General Public License
+ along with Walkmod.  If not, see <http://www.gnu.org/licenses/>.*/
+package org.walkmod.refactor.visitors;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Set;
+
+import org.walkmod.javalang.ast.Node;
+import org.walkmod.javalang.ast.body.BodyDeclaration;
+import org.walkmod.walkers.VisitorContext;
+
+/**
+ * Changes of the visitors on a compilation unit, located by the source ranges
+ * of the nodes they replace. They are applied on the original text of the
+ * file, which keeps the formatting of the unchanged code and avoids printing
+ * the whole unit, or emitted as a unified diff.
+ * <p>
+ * The visitors record their changes when the context contains an instance
+ * under the {@link MethodRefactor#SOURCE_EDITS_KEY} key. The new nodes are
+ * printed when the edits are applied, so they include the changes of the
+ * visitors that run later.
+ * </p>
+ */
+public class SourceEdits {
+
+   private static final int REPLACE = 0;
+
+   private static final int REMOVE = 1;
+
+   private static final int INSERT_BEFORE = 2;
+
+   private static final int INSERT_AFTER = 3;
+
+   private static final int CONTEXT_LINES = 3;
+
+   private final List<Edit> edits = new LinkedList<Edit>();
+
+   /**
+    * Nodes that are printed, or removed, as a whole by some edit. The changes
+    * under them do not need their own edits.
+    */
+   private final Set<Node> covered = Collections.newSetFromMap(new IdentityHashMap<Node, Boolean>());
+
+   private boolean complete = true;
+
+   /**
+    * Returns the edits of the context, or <code>null</code> if the changes
+    * are not tracked.
+    */
+   public static SourceEdits get(VisitorContext ctx) {
+      return (SourceEdits) ctx.get(MethodRefactor.SOURCE_EDITS_KEY);
+   }
+
+   /**
+    * Records that the source range of a node is replaced by the text of
+    * another one, which can be the same node if it has been changed in place.
+    */
+   public void replace(Node original, Node replacement) {
+      add(new Edit(REPLACE, original, replacement));
+   }
+
+   public void remove(Node original) {
+      add(new Edit(REMOVE, original, null));
+   }
+
+   /**
+    * Records a new statement, or declaration, in its own line before the
+    * anchor node.
+    */
+   public void insertBefore(Node anchor, Node node) {
+      add(new Edit(INSERT_BEFORE, anchor, node));
+   }
+
+   /**
+    * Records a new statement, or declaration, in its own line after the
+    * anchor node.
+    */
+   public void insertAfter(Node anchor, Node node) {
+      add(new Edit(INSERT_AFTER, anchor, node));
+   }
+
+   private void add(Edit edit) {
+      for (Node node = edit.anchor; node != null; node = node.getParentNode()) {
+         if (covered.contains(node)) {
+            return;
+         }
+      }
+      if (edit.anchor.isNewNode()) {
+         // the change cannot be located in the original text
+         complete = false;
+         return;
+      }
+      if (!edit.isInsert()) {
+         Iterator<Edit> it = edits.iterator();
+         while (it.hasNext()) {
+            if (edit.contains(it.next())) {
+               it.remove();
+            }
+         }
+      }
+      edits.add(edit);
+      covered.add(edit.node != null ? edit.node : edit.anchor);
+   }
+
+   public boolean isEmpty() {
+      return edits.isEmpty();
+   }
+
+   /**
+    * Checks if all the recorded changes can be located in the original text.
+    * Otherwise, the compilation unit must be printed.
+    */
+   public boolean isComplete() {
+      return complete;
+   }
+
+   /**
+    * Applies the edits on the original text of the compilation unit.
+    */
+   public String apply(String source) {
+      return apply(source, resolve(source), 0, source.length());
+   }
+
+   private static String apply(String source, List<Range> ranges, int from, int to) {
+      StringBuilder sb = new StringBuilder(to - from + 64);
+      int last = from;
+      for (Range range : ranges) {
+         sb.append(source, last, range.start);
+         sb.append(range.text);
+         last = range.end;
+      }
+      sb.append(source, last, to);
+      return sb.toString();
+   }
+
+   /**
+    * Returns a unified diff of the edits, whose hunks only contain the
+    * changed lines and their context.
+    * 
+    * @param path
+    *           the path of the file in the diff headers.
+    * @param source
+    *           the original text of the compilation unit.
+    */
+   public String diff(String path, String source) {
+      List<Range> ranges = resolve(source);
+      Lines lines = new Lines(source);
+      List<Change> changes = new LinkedList<Change>();
+      Iterator<Range> it = ranges.iterator();
+      Range range = it.hasNext() ? it.next() : null;
+      while (range != null) {
+         int first = lines.lineOf(range.start);
+         int last = lines.lineOf(range.end > range.start ? range.end - 1 : range.start);
+         List<Range> group = new LinkedList<Range>();
+         group.add(range);
+         range = it.hasNext() ? it.next() : null;
+         // the edits on the same or on consecutive lines are applied together
+         while (range != null && lines.lineOf(range.start) <= last + 1) {
+            group.add(range);
+            last = Math.max(last, lines.lineOf(range.end > range.start ? range.end - 1 : range.start));
+            range = it.hasNext() ? it.next() : null;
+         }
+         String text = apply(source, group, lines.start(first), lines.start(last + 1));
+         changes.add(new Change(first, last + 1, split(text)));
+      }
+      return format(path, lines.text, changes);
+   }
+
+   /**
+    * Returns a unified diff between two versions of a file with a single
+    * hunk, which spans from the first to the last different line. It is used
+    * when the edits are not available.
+    */
+   public static String diff(String path, String source, String output) {
+      List<String> oldLines = split(source);
+      List<String> newLines = split(output);
+      int prefix = 0;
+      while (prefix < oldLines.size() && prefix < newLines.size()
+            && oldLines.get(prefix).equals(newLines.get(prefix))) {
+         prefix++;
+      }
+      int suffix = 0;
+      while (suffix < oldLines.size() - prefix && suffix < newLines.size() - prefix
+            && oldLines.get(oldLines.size() - suffix - 1).equals(newLines.get(newLines.size() - suffix - 1))) {
+         suffix++;
+      }
+      List<Change> changes = new LinkedList<Change>();
+      if (prefix + suffix < oldLines.size() || prefix + suffix < newLines.size()) {
+         changes.add(new Change(prefix, oldLines.size() - suffix,
+               new ArrayList<String>(newLines.subList(prefix, newLines.size() - suffix))));
+      }
+      return format(path, oldLines, changes);
+   }
+
+   private static String format(String path, List<String> oldLines, List<Change> changes) {
+      if (changes.isEmpty()) {
+         return "";
+      }
+      StringBuilder sb = new StringBuilder();
+      sb.append("--- a/").append(path).append('\n');
+      sb.append("+++ b/").append(path).append('\n');
+      int delta = 0;
+      Iterator<Change> it = changes.iterator();
+      Change change = it.next();
+      while (change != null) {
+         // the changes whose contexts overlap are in the same hunk
+         List<Change> hunk = new LinkedList<Change>();
+         hunk.add(change);
+         change = it.hasNext() ? it.next() : null;
+         while (change != null && change.from - hunk.get(hunk.size() - 1).to <= 2 * CONTEXT_LINES) {
+            hunk.add(change);
+            change = it.hasNext() ? it.next() : null;
+         }
+         int from = Math.max(0, hunk.get(0).from - CONTEXT_LINES);
+         int to = Math.min(oldLines.size(), hunk.get(hunk.size() - 1).to + CONTEXT_LINES);
+         int newCount = to - from;
+         for (Change c : hunk) {
+            newCount += c.lines.size() - (c.to - c.from);
+         }
+         int oldCount = to - from;
+         sb.append("@@ -").append(oldCount == 0 ? from : from + 1).append(',').append(oldCount);
+         sb.append(" +").append(newCount == 0 ? from + delta : from + delta + 1).append(',').append(newCount);
+         sb.append(" @@\n");
+         int line = from;
+         for (Change c : hunk) {
+            for (; line < c.from; line++) {
+               append(sb, ' ', oldLines.get(line));
+            }
+            for (; line < c.to; line++) {
+               append(sb, '-', oldLines.get(line));
+            }
+            for (String newLine : c.lines) {
+               append(sb, '+', newLine);
+            }
+         }
+         for (; line < to; line++) {
+            append(sb, ' ', oldLines.get(line));
+         }
+         delta += newCount - oldCount;
+      }
+      return sb.toString();
+   }
+
+   private static void append(StringBuilder sb, char prefix, String line) {
+      sb.append(prefix).append(line);
+      if (!line.endsWith("\n") && !line.endsWith("\r")) {
+         sb.append("\n\\ No newline at end of file\n");
+      }
+   }
+
+   /**
+    * Splits a text in lines, keeping their terminators.
+    */
+   private static List<String> split(String text) {
+      return new Lines(text).text;
+   }
+
+   /**
+    * Converts the edits into ranges of the original text, sorted by their
+    * offsets.
+    */
+   private List<Range> resolve(String source) {
+      Lines lines = new Lines(source);
+      String newLine = lines.getSeparator();
+      List<Range> ranges = new ArrayList<Range>(edits.size());
+      for (Edit edit : edits) {
+         Node anchor = edit.anchor;
+         int start = lines.offset(anchor.getBeginLine(), anchor.getBeginColumn());
+         int end = lines.offset(anchor.getEndLine(), anchor.getEndColumn()) + 1;
+         String indent = lines.indentation(anchor.getBeginLine());
+         if (edit.kind == REPLACE) {
+            ranges.add(new Range(start, end, print(edit.node, newLine + indent)));
+         } else if (edit.kind == REMOVE) {
+            // the lines with nothing else are removed too
+            int lineStart = lines.start(anchor.getBeginLine() - 1);
+            int lineEnd = lines.start(anchor.getEndLine());
+            if (source.substring(lineStart, start).trim().length() == 0
+                  && source.substring(end, lineEnd).trim().length() == 0) {
+               start = lineStart;
+               end = lineEnd;
+            }
+            ranges.add(new Range(start, end, ""));
+         } else if (edit.kind == INSERT_BEFORE) {
+            ranges.add(new Range(start, start, print(edit.node, newLine + indent) + newLine + indent));
+         } else {
+            ranges.add(new Range(end, end, newLine + indent + print(edit.node, newLine + indent)));
+         }
+      }
+      // the insertions go before the replacements at the same offset
+      Collections.sort(ranges, new Comparator<Range>() {
+         @Override
+         public int compare(Range r1, Range r2) {
+            if (r1.start != r2.start) {
+               return r1.start < r2.start ? -1 : 1;
+            }
+            return (r1.end - r1.start) - (r2.end - r2.start);
+         }
+      });
+      int last = 0;
+      for (Range range : ranges) {
+         if (range.start < last) {
+            throw new IllegalStateException("The changes of the compilation unit overlap at the offset "
+                  + range.start);
+         }
+         last = range.end;
+      }
+      return ranges;
+   }
+
+   private static String print(Node node, String separator) {
+      if (node instanceof BodyDeclaration && ((BodyDeclaration) node).getJavaDoc() != null) {
+         // the javadoc is out of the source range of the declaration
+         try {
+            BodyDeclaration copy = (BodyDeclaration) node.clone();
+            copy.setJavaDoc(null);
+            node = copy;
+         } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+         }
+      }
+      return node.toString().replace("\n", separator);
+   }
+
+   private static final class Edit {
+
+      private final int kind;
+
+      private final Node anchor;
+
+      private final Node node;
+
+      private Edit(int kind, Node anchor, Node node) {
+         this.kind = kind;
+         this.anchor = anchor;
+         this.node = node;
+      }
+
+      private boolean isInsert() {
+         return kind == INSERT_BEFORE || kind == INSERT_AFTER;
+      }
+
+      private long begin() {
+         return position(anchor.getBeginLine(), anchor.getBeginColumn());
+      }
+
+      private long end() {
+         return position(anchor.getEndLine(), anchor.getEndColumn());
+      }
+
+      /**
+       * Checks if another edit is inside the source range of this one.
+       */
+      private boolean contains(Edit other) {
+         if (other.kind == INSERT_BEFORE) {
+            return other.begin() > begin() && other.begin() <= end();
+         }
+         if (other.kind == INSERT_AFTER) {
+            return other.end() >= begin() && other.end() < end();
+         }
+         return other.begin() >= begin() && other.end() <= end();
+      }
+
+      private static long position(int line, int column) {
+         return ((long) line << 32) | column;
+      }
+   }
+
+   private static final class Range {
+
+      private final int start;
+
+      private final int end;
+
+      private final String text;
+
+      private Range(int start, int end, String text) {
+         this.start = start;
+         this.end = end;
+         this.text = text;
+      }
+   }
+
+   /**
+    * Lines [from, to) of the original text replaced by new lines.
+    */
+   private static final class Change {
+
+      private final int from;
+
+      private final int to;
+
+      private final List<String> lines;
+
+      private Change(int from, int to, List<String> lines) {
+         this.from = from;
+         this.to = to;
+         this.lines = lines;
+      }
+   }
+
+   /**
+    * Lines of a text, with their terminators, and their offsets. The parser
+    * counts "\r\n", "\r" and "\n" as line terminators and a tab as a single
+    * column.
+    */
+   private static final class Lines {
+
+      private final List<String> text = new ArrayList<String>();
+
+      private final List<Integer> starts = new ArrayList<Integer>();
+
+      private final String source;
+
+      private Lines(String source) {
+         this.source = source;
+         int start = 0;
+         int i = 0;
+         while (i < source.length()) {
+            char c = source.charAt(i);
+            i++;
+            if (c == '\r' && i < source.length() && source.charAt(i) == '\n') {
+               i++;
+            }
+            if (c == '\r' || c == '\n') {
+               starts.add(start);
+               text.add(source.substring(start, i));
+               start = i;
+            }
+         }
+         if (start < source.length()) {
+            starts.add(start);
+            text.add(source.substring(start));
+         }
+      }
+
+      /**
+       * Returns the offset where a line starts, counting from 0, or the
+       * length of the text after the last line.
+       */
+      private int start(int line) {
+         return line < starts.size() ? starts.get(line) : source.length();
+      }
+
+      private int offset(int line, int column) {
+         return start(line - 1) + column - 1;
+      }
+
+      private int lineOf(int offset) {
+         int pos = Collections.binarySearch(starts, offset);
+         if (pos < 0) {
+            pos = -pos - 2;
+         }
+         return Math.max(pos, 0);
+      }
+
+      private String indentation(int line) {
+         String content = text.get(line - 1);
+         int i = 0;
+         while (i < content.length() && (content.charAt(i) == ' ' || content.charAt(i) == '\t')) {
+            i++;
+         }
+         return content.substring(0, i);
+      }
+
+      private String getSeparator() {
+         for (String line : text) {
+            if (line.endsWith("\r\n")) {
+               return "\r\n";
+            }
+            if (line.endsWith("\n")) {
+               return "\n";
+            }
+            if (line.endsWith("\r")) {
+               return "\r";
+            }
+         }
+         return "\n";
+      }
+   }
+}
@@ -0,0 +1,351 @@
+package org.walkmod.refactor.batch;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Scanner;
+
+import javax.tools.ToolProvider;
+
+import org.junit.Assert;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+public class BatchRefactorTest {
+
+   @Rule
+   public TemporaryFolder folder = new TemporaryFolder();
+
+   private void write(File file, String content) throws Exception {
+      file.getParentFile().mkdirs();
+      Writer writer = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+      try {
+         writer.write(content);
+      } finally {
+         writer.close();
+      }
+   }
+
+   private String read(File file) throws Exception {
+      Scanner scanner = new Scanner(file, "UTF-8");
+      try {
+         return scanner.useDelimiter("\\A").next();
+      } finally {
+         scanner.close();
+      }
+   }
+
+   @Test
+   public void testParallelRefactoring() throws Exception {
+      File src = folder.newFolder("src");
+      File out = folder.newFolder("out");
+      for (int i = 0; i < 8; i++) {
+         write(new File(src, "foo/Foo" + i + ".java"), "package foo; public class Foo" + i
+               + " { public void hi() { \"hello\".substring(" + i + ");}}");
+      }
+      write(new File(src, "bar/Bar.java"), "package bar; public class Bar { }");
+
+      File classes = folder.newFolder("classes");
+      List<String> args = new LinkedList<String>(Arrays.asList("-d", classes.getAbsolutePath()));
+      for (File file : new File(src, "foo").listFiles()) {
+         args.add(file.getAbsolutePath());
+      }
+      Assert.assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, args.toArray(new String[0])));
+
+      Map<String, String> methodRules = new HashMap<String, String>();
+      methodRules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(\"a\")");
+      Map<String, String> classRules = new HashMap<String, String>();
+      classRules.put("foo.Foo0", "foo.Foo00");
+
+      BatchRefactor batch = new BatchRefactor();
+      batch.setSourceDir(src);
+      batch.setOutputDir(out);
+      batch.setClasspath(Arrays.asList(classes));
+      batch.setThreads(4);
+      batch.setMethodRefactoringRules(methodRules);
+      batch.setClassRefactoringRules(classRules);
+
+      BatchReport report = batch.run();
+
+      Assert.assertEquals(9, report.getFiles());
+      Assert.assertEquals(8, report.getRefactoredFiles());
+      Assert.assertTrue(report.getFailures().isEmpty());
+      for (int i = 0; i < 8; i++) {
+         Assert.assertTrue(read(new File(out, "foo/Foo" + i + ".java")).contains("\"hello\".concat(\"a\")"));
+      }
+      Assert.assertFalse(new File(out, "bar/Bar.java").exists());
+   }
+
+   @Test
+   public void testIncrementalMode() throws Exception {
+      File src = folder.newFolder("src");
+      File out = folder.newFolder("out");
+      File cache = folder.newFolder("cache");
+      write(new File(src, "foo/Foo0.java"), "package foo; public class Foo0 { Foo0 next; }");
+      write(new File(src, "bar/Bar.java"), "package bar; public class Bar { }");
+
+      Map<String, String> classRules = new HashMap<String, String>();
+      classRules.put("foo.Foo0", "foo.Foo00");
+
+      BatchReport report = runIncremental(src, out, cache, classRules);
+      Assert.assertEquals(2, report.getFiles());
+      Assert.assertEquals(1, report.getRefactoredFiles());
+      Assert.assertEquals(0, report.getCachedFiles());
+      String refactored = read(new File(out, "foo/Foo0.java"));
+      Assert.assertTrue(new File(out, "foo/Foo0.java").delete());
+
+      report = runIncremental(src, out, cache, classRules);
+      Assert.assertEquals(1, report.getRefactoredFiles());
+      Assert.assertEquals(2, report.getCachedFiles());
+      Assert.assertEquals(refactored, read(new File(out, "foo/Foo0.java")));
+      Assert.assertFalse(new File(out, "bar/Bar.java").exists());
+
+      write(new File(src, "bar/Bar.java"), "package bar; public class Bar { Bar next; }");
+      report = runIncremental(src, out, cache, classRules);
+      Assert.assertEquals(1, report.getCachedFiles());
+
+      classRules.put("bar.Bar", "bar.BarDAO");
+      report = runIncremental(src, out, cache, classRules);
+      Assert.assertEquals(0, report.getCachedFiles());
+      Assert.assertEquals(2, report.getRefactoredFiles());
+   }
+
+   @Test
+   public void testIndexedRun() throws Exception {
+      File src = folder.newFolder("src");
+      File out = folder.newFolder("out");
+      File index = new File(folder.getRoot(), "symbols.idx");
+      write(new File(src, "foo/Foo0.java"), "package foo; public class Foo0 { Foo0 next; }");
+      write(new File(src, "bar/Bar.java"), "package bar; import foo.Foo0; public class Bar { Foo0 f; }");
+      write(new File(src, "baz/Baz.java"), "package baz; public class Baz { /* Foo0 */ int Foo0; }");
+
+      Map<String, String> classRules = new HashMap<String, String>();
+      classRules.put("foo.Foo0", "foo.Foo00");
+
+      BatchRefactor batch = new BatchRefactor();
+      batch.setSourceDir(src);
+      batch.setOutputDir(out);
+      batch.setIndexFile(index);
+      batch.setClassRefactoringRules(classRules);
+      BatchReport report = batch.run();
+
+      Assert.assertTrue(SymbolIndex.load(index).getFile().isFile());
+      Assert.assertEquals(2, report.getFiles());
+      Assert.assertEquals(2, report.getRefactoredFiles());
+
+      write(new File(src, "qux/Qux.java"), "package qux; import foo.*; public class Qux { Foo0 f; }");
+      report = batch.run();
+      Assert.assertEquals(3, report.getFiles());
+      Assert.assertTrue(read(new File(out, "qux/Qux.java")).contains("Foo00"));
+      Assert.assertEquals(4, SymbolIndex.load(index).getFilesCount());
+   }
+
+   @Test
+   public void testIndexUpdates() throws Exception {
+      File src = folder.newFolder("src");
+      File index = new File(folder.getRoot(), "symbols.idx");
+      File foo = new File(src, "foo/Foo.java");
+      write(foo, "package foo; public class Foo { }");
+      write(new File(src, "bar/Bar.java"), "package bar; public class Bar { }");
+      List<File> files = Arrays.asList(foo, new File(src, "bar/Bar.java"));
+
+      SymbolIndex first = SymbolIndex.update(index, src, files, "UTF-8");
+      write(foo, "package foo; public class Foo { bar.Bar bar; }");
+      foo.setLastModified(foo.lastModified() + 2000);
+      SymbolIndex second = SymbolIndex.update(index, src, files, "UTF-8");
+      write(foo, "package foo; public class Foo { }");
+      foo.setLastModified(foo.lastModified() + 4000);
+      SymbolIndex third = SymbolIndex.update(index, src, files, "UTF-8");
+
+      // the loaded indexes are not overwritten by the updates
+      Assert.assertEquals(Arrays.asList("bar/Bar.java"), new LinkedList<String>(first.getFiles("Bar")));
+      Assert.assertEquals(2, second.getFiles("Bar").size());
+      Assert.assertEquals(1, third.getFiles("Bar").size());
+      Assert.assertFalse(first.getFile().equals(second.getFile()));
+      Assert.assertEquals(third.getFile(), SymbolIndex.load(index).getFile());
+      Assert.assertEquals(Arrays.asList(third.getFile().getName()),
+            Arrays.asList(folder.getRoot().list(new FilenameFilter() {
+               public boolean accept(File dir, String name) {
+                  return name.startsWith("symbols.idx");
+               }
+            })));
+   }
+
+   @Test
+   public void testClassFilesScan() throws Exception {
+      File src = folder.newFolder("src");
+      File out = folder.newFolder("out");
+      write(new File(src, "foo/Foo.java"), "package foo; public class Foo { public void hi() { \"hello\".substring(0);}}");
+      write(new File(src, "bar/Bar.java"), "package bar; public class Bar { String s = \"substring\"; }");
+      // the same method name in another class
+      write(new File(src, "baz/Baz.java"),
+            "package baz; public class Baz { public void hi() { new StringBuilder(\"hello\").substring(0);}}");
+
+      File classes = folder.newFolder("classes");
+      Assert.assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, "-d",
+            classes.getAbsolutePath(), new File(src, "foo/Foo.java").getAbsolutePath(),
+            new File(src, "bar/Bar.java").getAbsolutePath(), new File(src, "baz/Baz.java").getAbsolutePath()));
+      // not compiled yet
+      write(new File(src, "qux/Qux.java"), "package qux; public class Qux { }");
+
+      Map<String, String> methodRules = new HashMap<String, String>();
+      methodRules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(\"a\")");
+
+      BatchRefactor batch = new BatchRefactor();
+      batch.setSourceDir(src);
+      batch.setOutputDir(out);
+      batch.setClasspath(Arrays.asList(classes));
+      batch.setScanClassFiles(true);
+      batch.setMethodRefactoringRules(methodRules);
+      BatchReport report = batch.run();
+
+      Assert.assertTrue(report.getFailures().isEmpty());
+      Assert.assertEquals(2, report.getFiles());
+      Assert.assertEquals(1, report.getRefactoredFiles());
+      Assert.assertTrue(read(new File(out, "foo/Foo.java")).contains("\"hello\".concat(\"a\")"));
+
+      // the unused import leaves no trace in the class file
+      write(new File(src, "bar/Bar.java"), "package bar; import foo.Foo; public class Bar { String s = \"substring\"; }");
+      new File(classes, "bar/Bar.class").setLastModified(System.currentTimeMillis() + 60000);
+      Map<String, String> classRules = new HashMap<String, String>();
+      classRules.put("foo.Foo", "foo.Foo2");
+      batch.setClassRefactoringRules(classRules);
+      report = batch.run();
+
+      Assert.assertTrue(report.getFailures().isEmpty());
+      Assert.assertEquals(3, report.getFiles());
+      Assert.assertTrue(read(new File(out, "bar/Bar.java")).contains("import foo.Foo2;"));
+   }
+
+   @Test
+   public void testClassFilesScanSubtypes() throws Exception {
+      File src = folder.newFolder("src");
+      File out = folder.newFolder("out");
+      write(new File(src, "foo/Foo.java"),
+            "package foo; import java.util.ArrayList; public class Foo { public void hi(ArrayList<String> l) { l.clear();}}");
+      write(new File(src, "bar/Bar.java"),
+            "package bar; import java.util.HashMap; public class Bar { public void hi(HashMap<String, String> m) { m.clear();}}");
+
+      File classes = folder.newFolder("classes");
+      Assert.assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, "-d",
+            classes.getAbsolutePath(), new File(src, "foo/Foo.java").getAbsolutePath(),
+            new File(src, "bar/Bar.java").getAbsolutePath()));
+
+      Map<String, String> methodRules = new HashMap<String, String>();
+      methodRules.put("java.util.Collection:clear()", "java.util.Collection:size()");
+
+      BatchRefactor batch = new BatchRefactor();
+      batch.setSourceDir(src);
+      batch.setOutputDir(out);
+      batch.setClasspath(Arrays.asList(classes));
+      batch.setScanClassFiles(true);
+      batch.setMethodRefactoringRules(methodRules);
+      BatchReport report = batch.run();
+
+      Assert.assertTrue(report.getFailures().isEmpty());
+      Assert.assertEquals(1, report.getFiles());
+      Assert.assertEquals(1, report.getRefactoredFiles());
+      Assert.assertTrue(read(new File(out, "foo/Foo.java")).contains("l.size()"));
+   }
+
+   @Test
+   public void testUnchangedFilesAreNotRewritten() throws Exception {
+      File src = folder.newFolder("src");
+      File out = folder.newFolder("out");
+      write(new File(src, "foo/Foo.java"), "package foo; public class Foo { public void hi() { \"hello\".substring(0);}}");
+      // it mentions the method, but calls it on another type
+      write(new File(src, "foo/Bar.java"),
+            "package foo; public class Bar { public void hi() { new StringBuilder(\"hello\").substring(0);}}");
+      File classes = folder.newFolder("classes");
+      Assert.assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, "-d",
+            classes.getAbsolutePath(), new File(src, "foo/Foo.java").getAbsolutePath(),
+            new File(src, "foo/Bar.java").getAbsolutePath()));
+
+      Map<String, String> methodRules = new HashMap<String, String>();
+      methodRules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(\"a\")");
+
+      BatchRefactor batch = new BatchRefactor();
+      batch.setSourceDir(src);
+      batch.setOutputDir(out);
+      batch.setClasspath(Arrays.asList(classes));
+      batch.setMethodRefactoringRules(methodRules);
+      BatchReport report = batch.run();
+
+      Assert.assertTrue(report.getFailures().isEmpty());
+      Assert.assertEquals(2, report.getFiles());
+      Assert.assertEquals(1, report.getRefactoredFiles());
+      Assert.assertTrue(new File(out, "foo/Foo.java").exists());
+      Assert.assertFalse(new File(out, "foo/Bar.java").exists());
+   }
+
+   @Test
+   public void testPreserveFormatting() throws Exception {
+      File src = folder.newFolder("src");
+      File out = folder.newFolder("out");
+      String source = "package foo;\n\nimport java.util.List;\n\npublic class Foo0   {\n\n\tFoo0    next; // keep\n"
+            + "\tList<Foo0> all;\n}\n";
+      write(new File(src, "foo/Foo0.java"), source);
+
+      Map<String, String> classRules = new HashMap<String, String>();
+      classRules.put("foo.Foo0", "foo.Foo00");
+
+      BatchRefactor batch = new BatchRefactor();
+      batch.setSourceDir(src);
+      batch.setOutputDir(out);
+      batch.setPreserveFormatting(true);
+      batch.setClassRefactoringRules(classRules);
+      Assert.assertEquals(1, batch.run().getRefactoredFiles());
+      Assert.assertEquals(source.replace("\tFoo0 ", "\tFoo00 ").replace("<Foo0>", "<Foo00>"),
+            read(new File(out, "foo/Foo0.java")));
+   }
+
+   @Test
+   public void testPatchOutput() throws Exception {
+      File src = folder.newFolder("src");
+      File out = folder.newFolder("out");
+      write(new File(src, "foo/Foo.java"), "package foo;\n\npublic class Foo {\n\n   public void hi() {\n"
+            + "      String s = \"hello\".substring(0);\n      s = s.substring(1).trim();\n   }\n}\n");
+      File classes = folder.newFolder("classes");
+      Assert.assertEquals(0, ToolProvider.getSystemJavaCompiler().run(null, null, null, "-d",
+            classes.getAbsolutePath(), new File(src, "foo/Foo.java").getAbsolutePath()));
+
+      Map<String, String> methodRules = new HashMap<String, String>();
+      methodRules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(\"a\")");
+
+      File patch = new File(folder.getRoot(), "changes.patch");
+      BatchRefactor batch = new BatchRefactor();
+      batch.setSourceDir(src);
+      batch.setOutputDir(out);
+      batch.setClasspath(Arrays.asList(classes));
+      batch.setPatchFile(patch);
+      batch.setMethodRefactoringRules(methodRules);
+      BatchReport report = batch.run();
+
+      Assert.assertTrue(report.getFailures().isEmpty());
+      Assert.assertEquals(1, report.getRefactoredFiles());
+      Assert.assertFalse(new File(out, "foo/Foo.java").exists());
+      Assert.assertEquals("--- a/foo/Foo.java\n+++ b/foo/Foo.java\n@@ -3,7 +3,7 @@\n public class Foo {\n \n"
+            + "    public void hi() {\n-      String s = \"hello\".substring(0);\n-      s = s.substring(1).trim();\n"
+            + "+      String s = \"hello\".concat(\"a\");\n+      s = s.concat(\"a\").trim();\n    }\n }\n", read(patch));
+   }
+
+   private BatchReport runIncremental(File src, File out, File cache, Map<String, String> classRules)
+         throws Exception {
+      BatchRefactor batch = new BatchRefactor();
+      batch.setSourceDir(src);
+      batch.setOutputDir(out);
+      batch.setCacheDir(cache);
+      batch.setClassRefactoringRules(classRules);
+      BatchReport report = batch.run();
+      Assert.assertTrue(report.getFailures().isEmpty());
+      return report;
+   }
+}
@@ -1,7 +1,13 @@
 package org.walkmod.refactor.visitors;
 
 import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 import junit.framework.Assert;
 
@@ -11,6 +17,8 @@ import org.walkmod.javalang.ast.CompilationUnit;
 import org.walkmod.javalang.ast.ImportDeclaration;
 import org.walkmod.javalang.ast.body.BodyDeclaration;
 import org.walkmod.javalang.ast.body.FieldDeclaration;
+import org.walkmod.javalang.ast.type.ClassOrInterfaceType;
+import org.walkmod.javalang.ast.type.ReferenceType;
 import org.walkmod.refactor.visitors.ClassOrInterfaceRefactor;
 import org.walkmod.walkers.VisitorContext;
 
@@ -56,6 +64,24 @@ public class ClassOrInterfaceRefactorTest {
 		Assert.assertEquals("Collection", fd.getType().toString());
 	}
 
+	@Test
+	public void testGenericTypes() throws Exception {
+		String code = "import java.util.List; public class Foo { private List<List<String>> list; private java.util.List<String> other;}";
+		CompilationUnit cu = ASTManager.parse(code);
+
+		ClassOrInterfaceRefactor coi = new ClassOrInterfaceRefactor();
+
+		Map<String, String> refactorMap = new HashMap<String, String>();
+		refactorMap.put("java.util.List", "java.util.Collection");
+
+		coi.setRefactoringRules(refactorMap);
+		cu.accept(coi, new VisitorContext());
+
+		List<BodyDeclaration> members = cu.getTypes().get(0).getMembers();
+		Assert.assertEquals("Collection<Collection<String>>", ((FieldDeclaration) members.get(0)).getType().toString());
+		Assert.assertEquals("Collection<String>", ((FieldDeclaration) members.get(1)).getType().toString());
+	}
+
 	@Test
 	public void testPackageClass() throws Exception {
 		String code = "package bar; public class Foo { private c elem; }";
@@ -77,6 +103,169 @@ public class ClassOrInterfaceRefactorTest {
 
 	}
 	
+	@Test
+	public void testWildcardImports() throws Exception {
+		String code = "import java.util.*; import java.utils.*; public class Foo { private List list; private Set set;}";
+		CompilationUnit cu = ASTManager.parse(code);
+
+		ClassOrInterfaceRefactor coi = new ClassOrInterfaceRefactor();
+
+		Map<String, String> refactorMap = new HashMap<String, String>();
+		refactorMap.put("java.util.List", "java.util.Collection");
+		refactorMap.put("java.util.Set", "foo.UniqueSet");
+		refactorMap.put("java.utilsx.Map", "foo.Map");
+
+		coi.setRefactoringRules(refactorMap);
+		cu.accept(coi, new VisitorContext());
+
+		List<BodyDeclaration> members = cu.getTypes().get(0).getMembers();
+		Assert.assertEquals("Collection", ((FieldDeclaration) members.get(0)).getType().toString());
+		Assert.assertEquals("UniqueSet", ((FieldDeclaration) members.get(1)).getType().toString());
+		Assert.assertEquals(3, cu.getImports().size());
+		Assert.assertEquals("foo.UniqueSet", cu.getImports().get(1).getName().toString());
+	}
+
+	@Test
+	public void testUnusedWildcardRenames() throws Exception {
+		String code = "import java.util.*; public class Foo { private List list; }";
+		CompilationUnit cu = ASTManager.parse(code);
+
+		ClassOrInterfaceRefactor coi = new ClassOrInterfaceRefactor();
+
+		Map<String, String> refactorMap = new HashMap<String, String>();
+		refactorMap.put("java.util.Set", "foo.UniqueSet");
+		refactorMap.put("java.util.Map", "foo.Dictionary");
+
+		coi.setRefactoringRules(refactorMap);
+		VisitorContext ctx = new VisitorContext();
+		cu.accept(coi, ctx);
+
+		Assert.assertFalse(MethodRefactor.isModified(ctx));
+		Assert.assertEquals(1, cu.getImports().size());
+
+		cu = ASTManager.parse("import java.util.*; public class Foo { private Map map; private Map other; }");
+		ctx = new VisitorContext();
+		cu.accept(coi, ctx);
+
+		Assert.assertTrue(MethodRefactor.isModified(ctx));
+		Assert.assertEquals(2, cu.getImports().size());
+		Assert.assertEquals("foo.Dictionary", cu.getImports().get(1).getName().toString());
+	}
+
+	@Test
+	public void testUnaffectedUnits() throws Exception {
+		String code = "import foo.Bar; public class Foo { private java.util.Set<Bar> set;}";
+
+		Map<String, String> refactorMap = new HashMap<String, String>();
+		refactorMap.put("java.util.List", "java.util.Collection");
+
+		CompilationUnit cu = ASTManager.parse(code);
+		ClassOrInterfaceRefactor coi = new ClassOrInterfaceRefactor();
+		coi.setRefactoringRules(refactorMap);
+		Assert.assertFalse(coi.isApplicable(cu));
+		Assert.assertFalse(coi.isApplicable(cu, code));
+		Assert.assertFalse(coi.isApplicable(cu, code + " // List"));
+		List<ImportDeclaration> imports = cu.getImports();
+		VisitorContext ctx = new VisitorContext();
+		cu.accept(coi, ctx);
+
+		Assert.assertSame(imports, cu.getImports());
+		Assert.assertFalse(MethodRefactor.isModified(ctx));
+	}
+
+	@Test
+	public void testQualifiedReferences() throws Exception {
+		String code = "import foo.Bar; public class Foo { private java.util.Set<java.util.List> list;}";
+
+		Map<String, String> refactorMap = new HashMap<String, String>();
+		refactorMap.put("java.util.List", "java.util.Collection");
+
+		CompilationUnit cu = ASTManager.parse(code);
+		ClassOrInterfaceRefactor coi = new ClassOrInterfaceRefactor();
+		coi.setRefactoringRules(refactorMap);
+		Assert.assertTrue(coi.isApplicable(cu));
+		Assert.assertTrue(coi.isApplicable(cu, code));
+		cu.accept(coi, new VisitorContext());
+
+		FieldDeclaration fd = (FieldDeclaration) cu.getTypes().get(0).getMembers().get(0);
+		Assert.assertEquals("java.util.Set<java.util.Collection>", fd.getType().toString());
+
+		code = "public class Foo { private java . util . /* list */ List list;}";
+		cu = ASTManager.parse(code);
+		Assert.assertTrue(coi.isApplicable(cu, code));
+	}
+
+	@Test
+	public void testReplacementTypesAreNotShared() throws Exception {
+		String code = "public class Foo { private java.util.List a; private java.util.List b;}";
+
+		Map<String, String> refactorMap = new HashMap<String, String>();
+		refactorMap.put("java.util.List", "java.util.concurrent.BlockingQueue");
+
+		CompilationUnit cu = ASTManager.parse(code);
+		ClassOrInterfaceRefactor coi = new ClassOrInterfaceRefactor();
+		coi.setRefactoringRules(refactorMap);
+		cu.accept(coi, new VisitorContext());
+
+		List<BodyDeclaration> members = cu.getTypes().get(0).getMembers();
+		ClassOrInterfaceType first = getType((FieldDeclaration) members.get(0));
+		ClassOrInterfaceType second = getType((FieldDeclaration) members.get(1));
+		Assert.assertEquals("java.util.concurrent.BlockingQueue", first.toString());
+		Assert.assertEquals("java.util.concurrent.BlockingQueue", second.toString());
+		Assert.assertNotSame(first.getScope(), second.getScope());
+
+		// the parsed replacement is reused by the next units
+		cu = ASTManager.parse("public class Bar { private java.util.List c;}");
+		cu.accept(coi, new VisitorContext());
+		ClassOrInterfaceType third = getType((FieldDeclaration) cu.getTypes().get(0).getMembers().get(0));
+		Assert.assertEquals("java.util.concurrent.BlockingQueue", third.toString());
+		Assert.assertNotSame(first.getScope(), third.getScope());
+	}
+
+	private ClassOrInterfaceType getType(FieldDeclaration fd) {
+		return (ClassOrInterfaceType) ((ReferenceType) fd.getType()).getType();
+	}
+
+	@Test
+	public void testSharedVisitor() throws Exception {
+		Map<String, String> refactorMap = new HashMap<String, String>();
+		refactorMap.put("java.util.Set", "foo.UniqueSet");
+		refactorMap.put("java.util.List", "java.util.Collection");
+
+		final ClassOrInterfaceRefactor coi = new ClassOrInterfaceRefactor();
+		coi.setRefactoringRules(refactorMap);
+
+		ExecutorService executor = Executors.newFixedThreadPool(4);
+		try {
+			List<Future<String>> results = new LinkedList<Future<String>>();
+			for (int i = 0; i < 200; i++) {
+				final String code = i % 2 == 0 ? "import java.util.*; public class Foo { private Set set; }"
+						: "import java.util.List; public class Foo { private List list; }";
+				results.add(executor.submit(new Callable<String>() {
+					public String call() throws Exception {
+						CompilationUnit cu = ASTManager.parse(code);
+						VisitorContext ctx = new VisitorContext();
+						cu.accept(coi, ctx);
+						Assert.assertTrue(MethodRefactor.isModified(ctx));
+						return cu.toString();
+					}
+				}));
+			}
+			for (int i = 0; i < results.size(); i++) {
+				String result = results.get(i).get();
+				if (i % 2 == 0) {
+					Assert.assertTrue(result.contains("import foo.UniqueSet;"));
+					Assert.assertTrue(result.contains("private UniqueSet set;"));
+				} else {
+					Assert.assertTrue(result.contains("import java.util.Collection;"));
+					Assert.assertTrue(result.contains("private Collection list;"));
+				}
+			}
+		} finally {
+			executor.shutdown();
+		}
+	}
+
 	@Test
 	public void testRefactoringConfiguration() throws Exception{
 		ClassOrInterfaceRefactor coi = new ClassOrInterfaceRefactor();
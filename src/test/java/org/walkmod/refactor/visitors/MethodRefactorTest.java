@@ -1,19 +1,35 @@
 package org.walkmod.refactor.visitors;
 
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
 import java.lang.reflect.Method;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
 import java.util.Map;
+import java.util.zip.GZIPOutputStream;
 
 import org.junit.Assert;
 import org.junit.Test;
+import org.walkmod.javalang.ASTManager;
 import org.walkmod.javalang.ast.CompilationUnit;
 import org.walkmod.javalang.ast.body.MethodDeclaration;
 import org.walkmod.javalang.ast.expr.MethodCallExpr;
 import org.walkmod.javalang.ast.expr.UnaryExpr;
 import org.walkmod.javalang.ast.stmt.IfStmt;
+import org.walkmod.javalang.ast.type.ClassOrInterfaceType;
+import org.walkmod.javalang.compiler.symbols.SymbolType;
 import org.walkmod.javalang.test.SemanticTest;
 import org.walkmod.javalang.visitors.VoidVisitor;
 import org.walkmod.javalang.visitors.VoidVisitorAdapter;
+import org.walkmod.refactor.config.MethodRefactoringRule;
+import org.walkmod.refactor.config.RulePack;
+import org.walkmod.refactor.exceptions.InvalidRefactoringRuleException;
 import org.walkmod.walkers.VisitorContext;
 
 
@@ -65,6 +81,193 @@ public class MethodRefactorTest extends SemanticTest {
 
    }
 
+   @Test
+   public void testParameterizedRuleAppliedTwice() throws Exception {
+      String code = "public class Foo { public void hi() { System.out.print(\"hello\"); System.out.print(\"bye\");}}";
+
+      Map<String, String> rules = new HashMap<String, String>();
+      rules.put("java.io.PrintStream:print(java.lang.String text)", "java.io.PrintStream:println(text.trim())");
+
+      CompilationUnit cu = compile(code);
+      MethodRefactor refactor = new MethodRefactor();
+      refactor.setClassLoader(getClassLoader());
+      refactor.setRefactoringRules(rules);
+      MethodRefactoringRule rule = getRule(refactor, new SymbolType("java.io.PrintStream"), "print", 1);
+      String template = rule.getExpressionTreeArgs().toString();
+      cu.accept(refactor, new VisitorContext());
+
+      MethodDeclaration md = (MethodDeclaration) cu.getTypes().get(0).getMembers().get(0);
+      Assert.assertEquals("System.out.println(\"hello\".trim());", md.getBody().getStmts().get(0).toString());
+      Assert.assertEquals("System.out.println(\"bye\".trim());", md.getBody().getStmts().get(1).toString());
+      // the arguments are replaced in copies of the template
+      Assert.assertEquals("[text.trim()]", template);
+      Assert.assertEquals(template, rule.getExpressionTreeArgs().toString());
+      Assert.assertSame(rule, getRule(refactor, new SymbolType("java.io.PrintStream"), "print", 1));
+   }
+
+   @Test
+   public void testOverloadedMethodRules() throws Exception {
+      String code = "public class Foo { public void hi() { \"hello\".substring(0, 2).substring(1);}}";
+
+      Map<String, String> rules = new HashMap<String, String>();
+      rules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(\"a\")");
+      rules.put("java.lang.String:substring(int start; int end)", "java.lang.String:concat(\"b\")");
+
+      CompilationUnit cu = getRefactoredSource(rules, code);
+
+      MethodDeclaration md = (MethodDeclaration) cu.getTypes().get(0).getMembers().get(0);
+      String stmt = md.getBody().getStmts().get(0).toString();
+      Assert.assertEquals("\"hello\".concat(\"b\").concat(\"a\");", stmt);
+
+   }
+
+   @Test
+   public void testRulesIndex() throws Exception {
+      Map<String, String> rules = new LinkedHashMap<String, String>();
+      rules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(\"a\")");
+      rules.put("java.lang.String:substring(int start; int end)", "java.lang.String:concat(\"b\")");
+      rules.put("java.lang.StringBuilder:substring(int pos)", "java.lang.StringBuilder:toString()");
+
+      MethodRefactor refactor = new MethodRefactor();
+      refactor.setRefactoringRules(rules);
+
+      Assert.assertEquals(Arrays.asList("java.lang.String:substring(int pos)"),
+            getSourceDefinitions(refactor, "java.lang.String", "substring", 1));
+      Assert.assertEquals(Arrays.asList("java.lang.String:substring(int start; int end)"),
+            getSourceDefinitions(refactor, "java.lang.String", "substring", 2));
+      Assert.assertEquals(Arrays.asList("java.lang.StringBuilder:substring(int pos)"),
+            getSourceDefinitions(refactor, "java.lang.StringBuilder", "substring", 1));
+      Assert.assertTrue(getSourceDefinitions(refactor, "java.lang.String", "substring", 3).isEmpty());
+      Assert.assertTrue(getSourceDefinitions(refactor, "java.lang.String", "concat", 1).isEmpty());
+   }
+
+   @Test
+   public void testCompiledRulesAreFrozen() throws Exception {
+      Map<String, String> rules = new HashMap<String, String>();
+      rules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(\"a\")");
+
+      MethodRefactor refactor = new MethodRefactor();
+      refactor.setRefactoringRules(rules);
+
+      MethodRefactoringRule rule = getRule(refactor, new SymbolType("java.lang.String"), "substring", 1);
+      Assert.assertTrue(rule.isCompiled());
+      // the argument types are resolved once
+      Assert.assertSame(rule.getArgTypes(), rule.getArgTypes());
+      Assert.assertEquals("int", rule.getArgTypes()[0].getName());
+      try {
+         rule.setScope("java.lang.StringBuilder");
+         Assert.fail("A compiled rule cannot be modified");
+      } catch (IllegalStateException e) {
+      }
+      try {
+         rule.getVariables().add("end");
+         Assert.fail("The variables of a compiled rule cannot be modified");
+      } catch (UnsupportedOperationException e) {
+      }
+   }
+
+   @Test
+   public void testCandidateRulesPerMember() throws Exception {
+      String code = "public class Foo { public void hi(String s) { s.substring(0); s.substring(1); s.trim();}}";
+
+      Map<String, String> rules = new HashMap<String, String>();
+      rules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(\"a\")");
+
+      CompilationUnit cu = compile(code);
+      MethodRefactor refactor = new MethodRefactor();
+      refactor.setClassLoader(getClassLoader());
+      refactor.setRefactoringRules(rules);
+      cu.accept(refactor, new VisitorContext());
+
+      Method substring = String.class.getMethod("substring", int.class);
+      List<MethodRefactoringRule> candidates = refactor.getCandidateRules(substring);
+      Assert.assertEquals(1, candidates.size());
+      Assert.assertSame(getRule(refactor, new SymbolType("java.lang.String"), "substring", 1), candidates.get(0));
+      // the members without rules are remembered too
+      Assert.assertTrue(refactor.getCandidateRules(String.class.getMethod("trim")).isEmpty());
+      Assert.assertNull(refactor.getCandidateRules(String.class.getMethod("length")));
+
+      refactor.setRefactoringRules(rules);
+      Assert.assertNull(refactor.getCandidateRules(substring));
+   }
+
+   @Test
+   public void testInheritedScopeRules() throws Exception {
+      String code = "import java.util.ArrayList; public class Foo { public void hi(ArrayList<String> list) { list.clear();}}";
+
+      Map<String, String> rules = new HashMap<String, String>();
+      rules.put("java.util.Collection:clear()", "java.util.Collection:reset()");
+
+      CompilationUnit cu = getRefactoredSource(rules, code);
+
+      MethodDeclaration md = (MethodDeclaration) cu.getTypes().get(0).getMembers().get(0);
+      String stmt = md.getBody().getStmts().get(0).toString();
+      Assert.assertEquals("list.reset();", stmt);
+
+   }
+
+   @Test
+   public void testHierarchyDispatch() throws Exception {
+      Map<String, String> rules = new LinkedHashMap<String, String>();
+      rules.put("java.util.Collection:clear()", "java.util.Collection:reset()");
+      rules.put("java.util.ArrayList:clear()", "java.util.ArrayList:reset()");
+      rules.put("java.util.List:clear()", "java.util.List:reset()");
+
+      MethodRefactor refactor = new MethodRefactor();
+      refactor.setRefactoringRules(rules);
+
+      // the rules keep the order they were declared, whatever their scope
+      List<String> expected = Arrays.asList("java.util.Collection:clear()", "java.util.ArrayList:clear()",
+            "java.util.List:clear()");
+      Assert.assertEquals(expected, getSourceDefinitions(refactor, "java.util.ArrayList", "clear", 0));
+      // the second lookup uses the cached hierarchy
+      Assert.assertEquals(expected, getSourceDefinitions(refactor, "java.util.ArrayList", "clear", 0));
+      Assert.assertEquals(Arrays.asList("java.util.Collection:clear()", "java.util.List:clear()"),
+            getSourceDefinitions(refactor, "java.util.LinkedList", "clear", 0));
+      Assert.assertEquals(Arrays.asList("java.util.Collection:clear()"),
+            getSourceDefinitions(refactor, "java.util.HashSet", "clear", 0));
+   }
+
+   @Test
+   public void testTypeNamesPerClassLoader() throws Exception {
+      compile("package foo; public class Outer { public static class Inner { }}");
+      ClassOrInterfaceType type = (ClassOrInterfaceType) ASTManager.parse(ClassOrInterfaceType.class, "foo.Outer.Inner");
+      ASTTypeNameResolver resolver = ASTTypeNameResolver.getInstance();
+      Assert.assertEquals("foo.Outer$Inner", resolver.valueOf(type).getName());
+
+      // a class loader where the name belongs to a top level class
+      final List<String> loaded = new LinkedList<String>();
+      ClassLoader loader = new ClassLoader(getClassLoader()) {
+         @Override
+         protected Class<?> loadClass(String name, boolean resolve) throws ClassNotFoundException {
+            if (name.equals("foo.Outer.Inner")) {
+               loaded.add(name);
+               return Object.class;
+            }
+            return super.loadClass(name, resolve);
+         }
+      };
+      getTypeTable().setClassLoader(loader);
+      Assert.assertEquals("foo.Outer.Inner", resolver.valueOf(type).getName());
+      Assert.assertEquals("foo.Outer.Inner", resolver.valueOf(type).getName());
+      // the name is only loaded once per class loader
+      Assert.assertEquals(1, loaded.size());
+   }
+
+   @Test
+   public void testObjectRulesOnInterfaces() throws Exception {
+      String code = "import java.util.List; public class Foo { public void hi(List<String> l, Object o) { l.hashCode(); o.hashCode();}}";
+
+      Map<String, String> rules = new HashMap<String, String>();
+      rules.put("java.lang.Object:hashCode()", "java.lang.Object:toString()");
+
+      CompilationUnit cu = getRefactoredSource(rules, code);
+
+      MethodDeclaration md = (MethodDeclaration) cu.getTypes().get(0).getMembers().get(0);
+      Assert.assertEquals("l.toString();", md.getBody().getStmts().get(0).toString());
+      Assert.assertEquals("o.toString();", md.getBody().getStmts().get(1).toString());
+   }
+
    @Test
    public void testSymbols() throws Exception {
       String code = "public class Foo { public void hi(String bar) { bar.substring(0).substring(3);}}";
@@ -146,6 +349,255 @@ public class MethodRefactorTest extends SemanticTest {
 
    }
 
+   @Test
+   public void testReloadingConfigFile() throws Exception {
+      File file = File.createTempFile("refactoring-methods-config", ".json");
+      file.deleteOnExit();
+      write(file, "{\"java.lang.String:trim()\": \"java.lang.String:strip()\","
+            + " \"java.lang.String:concat(java.lang.String s)\": \"java.lang.String:concat(s)\"}");
+
+      MethodRefactor refactor = new MethodRefactor();
+      refactor.setReloadInterval(20);
+      refactor.setRefactoringConfigFile(file.getAbsolutePath());
+      long version = refactor.getRulesVersion();
+      Assert.assertEquals(2, refactor.getRefactoringRules().size());
+      SymbolType string = new SymbolType("java.lang.String");
+      MethodRefactoringRule trim = getRule(refactor, string, "trim", 0);
+      MethodRefactoringRule concat = getRule(refactor, string, "concat", 1);
+
+      write(file, "{\"java.lang.String:trim()\": \"java.lang.String:strip()\","
+            + " \"java.lang.String:concat(java.lang.String s)\": \"java.lang.String:concat(s, s)\","
+            + " \"java.lang.String:substring(int pos)\": \"java.lang.String:concat(\\\"a\\\")\"}");
+      long timeout = System.currentTimeMillis() + 5000;
+      while (refactor.getRulesVersion() == version && System.currentTimeMillis() < timeout) {
+         Thread.sleep(20);
+      }
+      refactor.setReloadInterval(0);
+
+      Assert.assertEquals(version + 1, refactor.getRulesVersion());
+      Assert.assertEquals(3, refactor.getRefactoringRules().size());
+      Assert.assertTrue(refactor.isApplicable("\"hello\".substring(0);"));
+      // the unchanged rules are not compiled again
+      Assert.assertSame(trim, getRule(refactor, string, "trim", 0));
+      MethodRefactoringRule changed = getRule(refactor, string, "concat", 1);
+      Assert.assertNotSame(concat, changed);
+      Assert.assertEquals("java.lang.String:concat(s, s)", changed.getTargetDefinition());
+   }
+
+   private static MethodRefactoringRule getRule(MethodRefactor refactor, SymbolType scope, String method,
+         int argsNumber) {
+      List<MethodRefactoringRule> rules = refactor.getRefactoringRulesDictionary().getRefactoringRules(scope,
+            method, argsNumber);
+      Assert.assertEquals(1, rules.size());
+      return rules.get(0);
+   }
+
+   private static List<String> getSourceDefinitions(MethodRefactor refactor, String scope, String method,
+         int argsNumber) {
+      List<String> result = new LinkedList<String>();
+      for (MethodRefactoringRule rule : refactor.getRefactoringRulesDictionary().getRefactoringRules(
+            new SymbolType(scope), method, argsNumber)) {
+         result.add(rule.getSourceDefinition());
+      }
+      return result;
+   }
+
+   private static void write(File file, String contents) throws Exception {
+      OutputStream out = new FileOutputStream(file);
+      try {
+         out.write(contents.getBytes("UTF-8"));
+      } finally {
+         out.close();
+      }
+   }
+
+   @Test
+   public void testParsingGzipConfigFile() throws Exception {
+      File file = File.createTempFile("refactoring-methods-config", ".json.gz");
+      file.deleteOnExit();
+      InputStream in = new FileInputStream("src/test/resources/refactoring-methods-config.json");
+      OutputStream out = new GZIPOutputStream(new FileOutputStream(file));
+      try {
+         byte[] buffer = new byte[1024];
+         int read = in.read(buffer);
+         while (read != -1) {
+            out.write(buffer, 0, read);
+            read = in.read(buffer);
+         }
+      } finally {
+         in.close();
+         out.close();
+      }
+
+      MethodRefactor refactor = new MethodRefactor();
+      refactor.setRefactoringConfigFile(file.getAbsolutePath());
+
+      Assert.assertEquals(2, refactor.getRefactoringRules().size());
+      Assert.assertEquals("java.io.PrintStream:println(text)",
+            refactor.getRefactoringRules().get("java.io.PrintStream:print(java.lang.String text)"));
+   }
+
+   @Test
+   public void testRulePack() throws Exception {
+      String code = "public class Foo { public void hi() { \"hello\".substring(0, 2).substring(1);}}";
+
+      Map<String, String> rules = new LinkedHashMap<String, String>();
+      rules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(\"a\")");
+      rules.put("java.lang.String:substring(int start; int end)", "java.lang.String:concat(\"b\")");
+      Map<String, String> classRules = new LinkedHashMap<String, String>();
+      classRules.put("foo.Bar", "foo.BarDAO");
+
+      File file = File.createTempFile("refactoring-rules", ".pack");
+      file.deleteOnExit();
+      RulePack.write(file, rules, classRules);
+
+      CompilationUnit cu = compile(code);
+      MethodRefactor refactor = new MethodRefactor();
+      refactor.setClassLoader(getClassLoader());
+      refactor.setRulePackFile(file.getAbsolutePath());
+      cu.accept(refactor, new VisitorContext());
+
+      MethodDeclaration md = (MethodDeclaration) cu.getTypes().get(0).getMembers().get(0);
+      Assert.assertEquals("\"hello\".concat(\"b\").concat(\"a\");", md.getBody().getStmts().get(0).toString());
+      Assert.assertEquals(rules, refactor.getRefactoringRules());
+
+      RulePack pack = RulePack.load(file);
+      Assert.assertEquals(2, pack.getMethodRulesCount());
+      Assert.assertEquals(classRules, pack.getClassRules());
+   }
+
+   @Test
+   public void testLexicalFilter() throws Exception {
+      Map<String, String> rules = new HashMap<String, String>();
+      rules.put("java.util.List:add(java.lang.Object o)", "java.util.List:append(o)");
+      rules.put("Bar:Bar()", "Bar:BarDAO()");
+
+      MethodRefactor refactor = new MethodRefactor();
+      refactor.setRefactoringRules(rules);
+
+      Assert.assertTrue(refactor.isApplicable("public class Foo { void hi(List l) { l.add(1); }}"));
+      Assert.assertTrue(refactor.isApplicable("public class Foo { Object bar = new Bar(); }"));
+      Assert.assertFalse(refactor.isApplicable("public class Foo { String address; Object bar = new BarDAO(); }"));
+   }
+
+   @Test
+   public void testSharedVisitor() throws Exception {
+      Map<String, String> rules = new HashMap<String, String>();
+      rules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(\"a\")");
+
+      MethodRefactor refactor = new MethodRefactor();
+      refactor.setRefactoringRules(rules);
+
+      CompilationUnit cu = compile("public class Foo { public void hi() { \"hello\".substring(0);}}");
+      refactor.setClassLoader(getClassLoader());
+      cu.accept(refactor, new VisitorContext());
+      MethodDeclaration md = (MethodDeclaration) cu.getTypes().get(0).getMembers().get(0);
+      Assert.assertEquals("\"hello\".concat(\"a\");", md.getBody().getStmts().get(0).toString());
+
+      rules = new HashMap<String, String>();
+      rules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(\"b\")");
+      refactor.setRefactoringRules(rules);
+
+      cu = compile("public class Bar { public void hi() { \"hello\".substring(1);}}");
+      refactor.setClassLoader(getClassLoader());
+      cu.accept(refactor, new VisitorContext());
+      md = (MethodDeclaration) cu.getTypes().get(0).getMembers().get(0);
+      Assert.assertEquals("\"hello\".concat(\"b\");", md.getBody().getStmts().get(0).toString());
+   }
+
+   @Test
+   public void testRulesSnapshots() throws Exception {
+      Map<String, String> rules = new HashMap<String, String>();
+      rules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(\"a\")");
+
+      MethodRefactor refactor = new MethodRefactor();
+      refactor.setRefactoringRules(rules);
+      long version = refactor.getRulesVersion();
+
+      rules.clear();
+      Assert.assertEquals(1, refactor.getRefactoringRules().size());
+
+      Map<String, String> invalidRules = new HashMap<String, String>();
+      invalidRules.put("java.lang.String:substring", "java.lang.String:concat(\"b\")");
+      try {
+         refactor.setRefactoringRules(invalidRules);
+         Assert.fail("The rule has no arguments");
+      } catch (InvalidRefactoringRuleException e) {
+      }
+      Assert.assertEquals(version, refactor.getRulesVersion());
+      Assert.assertTrue(refactor.getRefactoringRules().containsKey("java.lang.String:substring(int pos)"));
+      Assert.assertTrue(refactor.isApplicable("\"hello\".substring(0);"));
+   }
+
+   @Test
+   public void testInvalidRulesAreReportedAtOnce() throws Exception {
+      Map<String, String> rules = new LinkedHashMap<String, String>();
+      rules.put("java.lang.String:substring", "java.lang.String:concat(\"a\")");
+      rules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(\"b\")");
+      rules.put("java.lang.String:trim()", "concat()");
+
+      MethodRefactor refactor = new MethodRefactor();
+      try {
+         refactor.setRefactoringRules(rules);
+         Assert.fail("Two rules are not valid");
+      } catch (InvalidRefactoringRuleException e) {
+         Assert.assertEquals(2, e.getErrors().size());
+         Assert.assertTrue(e.getErrors().get(0).getMessage().contains("java.lang.String:substring =>"));
+         Assert.assertTrue(e.getErrors().get(1).getMessage().contains("java.lang.String:trim() =>"));
+      }
+      Assert.assertTrue(refactor.getRefactoringRules().isEmpty());
+   }
+
+   @Test
+   public void testLazyCompilation() throws Exception {
+      String code = "import java.util.ArrayList; public class Foo { public void hi(ArrayList<String> list) { list.clear();}}";
+
+      Map<String, String> rules = new LinkedHashMap<String, String>();
+      rules.put("java.util.Collection:clear()", "java.util.Collection:reset()");
+      // it is never compiled because there are no calls with this scope
+      rules.put("java.io.File:exists()", "java.io.File:");
+
+      CompilationUnit cu = compile(code);
+      MethodRefactor refactor = new MethodRefactor();
+      refactor.setClassLoader(getClassLoader());
+      refactor.setLazyCompilation(true);
+      refactor.setRefactoringRules(rules);
+
+      Assert.assertEquals(rules, refactor.getRefactoringRules());
+      Assert.assertTrue(refactor.isApplicable("list.clear();"));
+
+      cu.accept(refactor, new VisitorContext());
+      MethodDeclaration md = (MethodDeclaration) cu.getTypes().get(0).getMembers().get(0);
+      Assert.assertEquals("list.reset();", md.getBody().getStmts().get(0).toString());
+   }
+
+   @Test
+   public void testLazyCompilationErrorsAreReportedOnce() throws Exception {
+      String code = "public class Foo { public String hi(String s) { return s.trim();}}";
+
+      Map<String, String> rules = new LinkedHashMap<String, String>();
+      rules.put("java.lang.String:trim()", "java.lang.String:intern()");
+      rules.put("java.lang.String:substring(int pos)", "java.lang.String:concat(pos +)");
+
+      CompilationUnit cu = compile(code);
+      MethodRefactor refactor = new MethodRefactor();
+      refactor.setClassLoader(getClassLoader());
+      refactor.setLazyCompilation(true);
+      refactor.setRefactoringRules(rules);
+
+      try {
+         cu.accept(refactor, new VisitorContext());
+         Assert.fail("The substring rule is not valid");
+      } catch (RuntimeException e) {
+         Assert.assertTrue(e.getCause() instanceof InvalidRefactoringRuleException);
+         Assert.assertTrue(e.getCause().getMessage().contains("java.lang.String:substring"));
+      }
+      // the valid rules of the scope are applied afterwards
+      cu.accept(refactor, new VisitorContext());
+      MethodDeclaration md = (MethodDeclaration) cu.getTypes().get(0).getMembers().get(0);
+      Assert.assertEquals("return s.intern();", md.getBody().getStmts().get(0).toString());
+   }
+
    @Test
    public void testRefactoringVisitors() throws Exception {
       String code = "import java.io.File; public class Bar { public boolean isOpen(File file){return false;}}";
@@ -175,9 +627,49 @@ public class MethodRefactorTest extends SemanticTest {
       
       coi.setRefactoringVisitors(refactoringVisitors);
 
-      cu.accept(coi, new VisitorContext());
+      VisitorContext ctx = new VisitorContext();
+      SourceEdits edits = new SourceEdits();
+      ctx.put(MethodRefactor.SOURCE_EDITS_KEY, edits);
+      cu.accept(coi, ctx);
 
       Assert.assertNull(md.getParameters());
+      Assert.assertTrue(MethodRefactor.isModified(ctx));
+      Assert.assertFalse(edits.isEmpty());
+   }
+
+   @Test
+   public void testUnchangedRefactoringVisitors() throws Exception {
+      String code = "import java.io.File; public class Bar { public boolean isOpen(File file){return false;}}";
+
+      Map<String, String> rules = new HashMap<String, String>();
+      rules.put("Bar:isOpen(java.io.File file)", "Bar:isOpen()");
+
+      CompilationUnit cu = compile(code);
+
+      MethodDeclaration md = (MethodDeclaration) cu.getTypes().get(0).getMembers().get(0);
+
+      Map<Method, VoidVisitor<?>> refactoringVisitors = new HashMap<Method, VoidVisitor<?>>();
+
+      refactoringVisitors.put(md.getSymbolData().getMethod(), new VoidVisitorAdapter<VisitorContext>() {
+
+         public void visit(MethodDeclaration md, VisitorContext ctx) {
+            md.setParameters(md.getParameters());
+         }
+
+      });
+
+      MethodRefactor refactor = new MethodRefactor();
+      refactor.setClassLoader(getClassLoader());
+      refactor.setRefactoringRules(rules);
+      refactor.setRefactoringVisitors(refactoringVisitors);
+
+      VisitorContext ctx = new VisitorContext();
+      SourceEdits edits = new SourceEdits();
+      ctx.put(MethodRefactor.SOURCE_EDITS_KEY, edits);
+      cu.accept(refactor, ctx);
+
+      Assert.assertFalse(MethodRefactor.isModified(ctx));
+      Assert.assertTrue(edits.isEmpty());
    }
 
 }